@@ -5,12 +5,51 @@
 
 package com.aperigeek.mj;
 
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.DebugInfo;
+import com.aperigeek.mj.codegen.Histogram;
+import com.aperigeek.mj.codegen.ObjectFile;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.ir.Builder;
+import com.aperigeek.mj.ir.LoopOptimizer;
+import com.aperigeek.mj.ir.Lowering;
+import com.aperigeek.mj.ir.Optimizer;
+import com.aperigeek.mj.ir.Program;
+import com.aperigeek.mj.linker.Linker;
+import com.aperigeek.mj.linker.Unit;
+import com.aperigeek.mj.parser.FragmentCache;
+import com.aperigeek.mj.parser.ParallelParser;
 import com.aperigeek.mj.parser.Parser;
 import com.aperigeek.mj.scanner.Scanner;
+import com.aperigeek.mj.server.CompileClient;
+import com.aperigeek.mj.server.CompileServer;
+import com.aperigeek.mj.stats.Stats;
+import com.aperigeek.mj.symtab.Struct;
+import com.aperigeek.mj.symtab.SymObject;
+import com.aperigeek.mj.verifier.MethodInfo;
+import com.aperigeek.mj.verifier.Verifier;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -19,36 +58,623 @@ import java.io.IOException;
  */
 public class Main {
 
+    /**
+     * Streams receiving the results and the errors
+     */
+    private PrintStream out;
+
+    private PrintStream err;
+
+    /**
+     * Directory relative file names are resolved from, or null for the
+     * current directory
+     */
+    private File directory;
+
+    /**
+     * Files written so far
+     */
+    public List<String> outputs = new ArrayList<String>();
+
+    /**
+     * Errors found so far
+     */
+    public int errors;
+
+    /**
+     * Maximum number of diagnostics printed for a file
+     */
+    private int errorLimit = DiagnosticBuffer.DEFAULT_LIMIT;
+
+    public Main(PrintStream out, PrintStream err, File directory) {
+        this.out = out;
+        this.err = err;
+        this.directory = directory;
+    }
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar MicroJava.jar Program.mj");
+        int port = serverPort(args);
+        if (port > 0) {
+            try {
+                if (args[0].startsWith("-server")) {
+                    new CompileServer(port).run();
+                } else {
+                    String[] request = new String[args.length - 1];
+                    System.arraycopy(args, 1, request, 0, request.length);
+                    new CompileClient(port).compile(request);
+                }
+            } catch (IOException ex) {
+                System.err.println("Compile server error: "
+                        + ex.getMessage());
+            }
+            return;
+        }
+
+        new Main(System.out, System.err, null).run(args);
+    }
+
+    /**
+     * Reads the port of a compile server command
+     * @param args command line arguments
+     * @return the port to use, or 0 if the arguments are not a compile
+     *         server command or if the port is out of range
+     */
+    private static int serverPort(String[] args) {
+        if (args.length == 0
+                || !args[0].matches("-(server|client)(=[0-9]{1,5})?")) {
+            return 0;
+        }
+        int i = args[0].indexOf('=');
+        if (i < 0) {
+            return CompileServer.DEFAULT_PORT;
+        }
+        int port = Integer.parseInt(args[0].substring(i + 1));
+        if (port < 1 || port > 65535) {
+            return 0;
+        }
+        return port;
+    }
+
+    /**
+     * Runs the compiler
+     * @param args command line arguments
+     */
+    public void run(String[] args) {
+        boolean verify = false;
+        boolean histogram = false;
+        boolean debug = false;
+        boolean optimize = false;
+        int inlineLimit = 0;
+        int threads = 1;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean unit = false;
+        boolean incremental = false;
+        boolean stats = false;
+        List<String> uses = new ArrayList<String>();
+        String output = null;
+        List<String> fileNames = new ArrayList<String>();
+        // Options given to each file compiled by a batch
+        List<String> options = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && !arg.startsWith("-j=")) {
+                options.add(arg);
+            }
+            if (arg.equals("-verify")) {
+                verify = true;
+            } else if (arg.equals("-histogram")) {
+                histogram = true;
+            } else if (arg.equals("-g")) {
+                debug = true;
+            } else if (arg.equals("-O")) {
+                optimize = true;
+            } else if (arg.startsWith("-inline=")) {
+                try {
+                    inlineLimit = Integer.parseInt(arg.substring(8));
+                } catch (NumberFormatException ex) {
+                    fileNames.clear();
+                    break;
+                }
+            } else if (arg.startsWith("-j=")) {
+                try {
+                    threads = Integer.parseInt(arg.substring(3));
+                } catch (NumberFormatException ex) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    fileNames.clear();
+                    break;
+                }
+                jobs = threads;
+            } else if (arg.startsWith("-maxerrors=")) {
+                try {
+                    errorLimit = Integer.parseInt(arg.substring(11));
+                } catch (NumberFormatException ex) {
+                    errorLimit = -1;
+                }
+                if (errorLimit < 0) {
+                    fileNames.clear();
+                    break;
+                }
+            } else if (arg.equals("-incremental")) {
+                incremental = true;
+            } else if (arg.equals("-stats")) {
+                stats = true;
+            } else if (arg.equals("-c")) {
+                unit = true;
+            } else if (arg.startsWith("-use=")) {
+                uses.add(path(arg.substring(5)));
+            } else if (arg.startsWith("-link=")) {
+                output = path(arg.substring(6));
+            } else if (!arg.startsWith("-")) {
+                File file = new File(path(arg));
+                if (file.isDirectory()) {
+                    sources(file, fileNames);
+                } else {
+                    fileNames.add(file.getPath());
+                }
+            } else {
+                fileNames.clear();
+                break;
+            }
+        }
+        if (fileNames.isEmpty()
+                || fileNames.size() > 1 && (verify || histogram)) {
+            out.println("Usage: java -jar MicroJava.jar "
+                    + "[-g] [-O] [-inline=size] [-j=threads] "
+                    + "[-incremental] [-stats] Program.mj...");
+            out.println("       java -jar MicroJava.jar "
+                    + "-c [-inline=size] [-use=Unit.mjo]... Unit.mj...");
+            out.println("       java -jar MicroJava.jar "
+                    + "[-O] -link=Program.obj Unit.mjo...");
+            out.println("       java -jar MicroJava.jar "
+                    + "-verify Program.obj");
+            out.println("       java -jar MicroJava.jar "
+                    + "-histogram Program.obj");
+            out.println("  -g  write debug informations "
+                    + "to Program.dbg");
+            out.println("  -O  optimize the generated code");
+            out.println("  -inline=size  inline leaf methods "
+                    + "up to size bytes of code");
+            out.println("  -j=threads  compile method bodies "
+                    + "on several threads,");
+            out.println("              or several files at once");
+            out.println("  -maxerrors=count  print at most count "
+                    + "errors per file (default "
+                    + DiagnosticBuffer.DEFAULT_LIMIT + ")");
+            out.println("  -incremental  only compile the methods "
+                    + "changed since the last compilation,");
+            out.println("                keeping compiled methods "
+                    + "in Program.mjc");
+            out.println("  -stats  print the time spent and the memory "
+                    + "allocated by each phase");
+            out.println("  -c  compile a unit of a program "
+                    + "to Unit.mjo");
+            out.println("  -use=Unit.mjo  compile against "
+                    + "the declarations of another unit");
+            out.println("  -link=Program.obj  link the units "
+                    + "of a program");
+            out.println("Directories are searched for .mj files.");
+            out.println("Compile server: java -jar MicroJava.jar "
+                    + "-server[=port]");
+            out.println("  and run compilations with "
+                    + "java -jar MicroJava.jar -client[=port] arguments...");
             return;
         }
+
+        String fileName = fileNames.get(0);
+        if (output != null) {
+            link(fileNames, output, optimize);
+        } else if (fileNames.size() > 1) {
+            compileAll(fileNames, options, jobs);
+        } else if (unit) {
+            compileUnit(fileName, uses, inlineLimit);
+        } else if (verify) {
+            verify(fileName);
+        } else if (histogram) {
+            histogram(fileName);
+        } else {
+            compile(fileName, debug, optimize, inlineLimit, threads,
+                    incremental, stats);
+        }
+    }
+
+    private void compile(String fileName, boolean debug,
+            boolean optimize, int inlineLimit, int threads,
+            boolean incremental, boolean stats) {
+        try {
+            DiagnosticBuffer diagnostics = new DiagnosticBuffer(errorLimit);
+            Stats phases = stats ? new Stats() : null;
+            Scanner scanner = new Scanner(new FileInputStream(fileName));
+            scanner.diagnostics = diagnostics;
+            scanner.stats = phases;
+            int errors;
+            Code code;
+            if (threads > 1 || incremental) {
+                ParallelParser parser = new ParallelParser(scanner, threads);
+                parser.diagnostics = diagnostics;
+                parser.stats = phases;
+                parser.inlineLimit = inlineLimit;
+                parser.debug = debug;
+                if (incremental) {
+                    parser.cache = readCache(fileName);
+                }
+                parser.parse();
+                errors = parser.errors;
+                code = parser.code;
+                if (incremental && errors == 0) {
+                    out.println(parser.compiled + " methods compiled.");
+                    writeCache(fileName, parser.cache);
+                }
+            } else {
+                Parser parser = new Parser(scanner);
+                parser.diagnostics = diagnostics;
+                parser.stats = phases;
+                parser.inlineLimit = inlineLimit;
+                if (debug) {
+                    parser.code.debug = new DebugInfo();
+                }
+                parser.parse();
+                errors = parser.errors;
+                code = parser.code;
+            }
+            diagnostics.print(err);
+            out.println(errors + " errors found.");
+            this.errors += errors;
+            if (errors == 0) {
+                if (optimize) {
+                    if (stats) {
+                        phases.enter(Stats.OPTIMIZE);
+                    }
+                    code = optimize(code, debug);
+                    if (stats) {
+                        phases.exit();
+                    }
+                }
+                code.stats = phases;
+                try {
+                    code.write(create(outputFileName(fileName, ".obj")));
+                    if (debug) {
+                        code.debug.write(
+                                create(outputFileName(fileName, ".dbg")));
+                    }
+                } catch (IOException ex) {
+                    err.println("Error writing output file");
+                    errors++;
+                    ex.printStackTrace(err);
+                }
+            }
+            if (stats) {
+                phases.print(out);
+            }
+        } catch (FileNotFoundException ex) {
+            err.println(fileName + " not found, exiting...");
+            errors++;
+        }
+    }
+
+    /**
+     * Adds the source files found in a directory and its subdirectories,
+     * sorted by name
+     */
+    private void sources(File directory, List<String> fileNames) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                sources(file, fileNames);
+            } else if (file.getName().endsWith(".mj")) {
+                fileNames.add(file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Compiles several files at once, with the same options.
+     *
+     * Each file is compiled by its own Main, whose results and errors are
+     * kept aside. They are printed once the file is compiled, in the order
+     * of the files, each line prefixed with the file name.
+     *
+     * @param jobs number of files compiled at the same time
+     */
+    private void compileAll(List<String> fileNames, List<String> options,
+            int jobs) {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<Compilation>> results =
+                new ArrayList<Future<Compilation>>();
+        for (String fileName : fileNames) {
+            List<String> args = new ArrayList<String>(options);
+            args.add(fileName);
+            results.add(executor.submit(new Compilation(fileName,
+                    args.toArray(new String[args.size()]))));
+        }
+
+        List<Compilation> compilations = new ArrayList<Compilation>();
+        try {
+            for (Future<Compilation> result : results) {
+                Compilation compilation = result.get();
+                print(out, compilation.fileName, compilation.results);
+                print(err, compilation.fileName, compilation.errors);
+                errors += compilation.main.errors;
+                outputs.addAll(compilation.main.outputs);
+                compilations.add(compilation);
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        double time = (System.nanoTime() - start) / 1e6;
+
+        long size = 0;
+        int failed = 0;
+        for (Compilation compilation : compilations) {
+            long length = new File(compilation.fileName).length();
+            double fileTime = compilation.time / 1e6;
+            out.println(String.format("%s: %d bytes in %.1f ms (%.1f KB/s)",
+                    compilation.fileName, length, fileTime,
+                    length / fileTime * 1000 / 1024));
+            size += length;
+            if (compilation.main.errors > 0) {
+                failed++;
+            }
+        }
+        out.println(String.format("%d files, %d with errors, "
+                + "%d bytes in %.1f ms (%.1f KB/s)",
+                compilations.size(), failed, size, time,
+                size / time * 1000 / 1024));
+    }
+
+    private void print(PrintStream stream, String fileName,
+            ByteArrayOutputStream lines) {
+        BufferedReader reader = new BufferedReader(
+                new StringReader(lines.toString()));
         try {
-            Scanner scanner = new Scanner(new FileInputStream(args[0]));
+            String line = reader.readLine();
+            while (line != null) {
+                stream.println(fileName + ": " + line);
+                line = reader.readLine();
+            }
+        } catch (IOException ex) {
+            // Not thrown when reading a string
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Compilation of one file of a batch
+     */
+    private class Compilation implements Callable<Compilation> {
+
+        String fileName;
+
+        String[] args;
+
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+
+        Main main;
+
+        /**
+         * Compilation time, in nanoseconds
+         */
+        long time;
+
+        Compilation(String fileName, String[] args) {
+            this.fileName = fileName;
+            this.args = args;
+        }
+
+        public Compilation call() {
+            long start = System.nanoTime();
+            main = new Main(new PrintStream(results), new PrintStream(errors),
+                    directory);
+            main.run(args);
+            time = System.nanoTime() - start;
+            return this;
+        }
+
+    }
+
+    private FragmentCache readCache(String fileName) {
+        File file = new File(outputFileName(fileName, ".mjc"));
+        if (file.exists()) {
+            try {
+                return FragmentCache.read(new BufferedInputStream(
+                        new FileInputStream(file)));
+            } catch (IOException ex) {
+                err.println("Error reading cache file, "
+                        + "compiling all methods: " + ex.getMessage());
+            }
+        }
+        return new FragmentCache();
+    }
+
+    private void writeCache(String fileName, FragmentCache cache) {
+        try {
+            cache.write(new BufferedOutputStream(new FileOutputStream(
+                    outputFileName(fileName, ".mjc"))));
+        } catch (IOException ex) {
+            err.println("Error writing cache file");
+            ex.printStackTrace(err);
+        }
+    }
+
+    private static Code optimize(Code code, boolean debug) {
+        Program program = new Builder(code).build();
+        new Optimizer(program).optimize();
+        new LoopOptimizer(program).optimize();
+        // Constants may now be propagated to the preheaders
+        new Optimizer(program).optimize();
+        return new Lowering(program, debug).lower();
+    }
+
+    private void compileUnit(String fileName, List<String> uses,
+            int inlineLimit) {
+        Map<String, Struct> classes = new HashMap<String, Struct>();
+        List<SymObject> imports = new ArrayList<SymObject>();
+        for (String use : uses) {
+            Unit unit = readUnit(use, classes);
+            if (unit == null) {
+                return;
+            }
+            imports.addAll(unit.exports);
+        }
+
+        try {
+            DiagnosticBuffer diagnostics = new DiagnosticBuffer(errorLimit);
+            Scanner scanner = new Scanner(new FileInputStream(fileName));
+            scanner.diagnostics = diagnostics;
             Parser parser = new Parser(scanner);
+            parser.diagnostics = diagnostics;
+            parser.unit = true;
+            parser.imports = imports;
+            parser.inlineLimit = inlineLimit;
             parser.parse();
-            System.out.println(parser.errors + " errors found.");
+            diagnostics.print(err);
+            out.println(parser.errors + " errors found.");
+            errors += parser.errors;
             if (parser.errors == 0) {
                 try {
-                    parser.code.write(new FileOutputStream(
-                            objFileName(args[0])));
+                    new Unit(parser).write(
+                            create(outputFileName(fileName, ".mjo")));
                 } catch (IOException ex) {
-                    System.err.println("Error writing output file");
-                    ex.printStackTrace();
+                    err.println("Error writing output file");
+                    errors++;
+                    ex.printStackTrace(err);
                 }
             }
         } catch (FileNotFoundException ex) {
-            System.err.println(args[0] + " not found, exiting...");
+            err.println(fileName + " not found, exiting...");
+            errors++;
+        }
+    }
+
+    private void link(List<String> fileNames, String output,
+            boolean optimize) {
+        Map<String, Struct> classes = new HashMap<String, Struct>();
+        List<Unit> units = new ArrayList<Unit>();
+        for (String fileName : fileNames) {
+            Unit unit = readUnit(fileName, classes);
+            if (unit == null) {
+                return;
+            }
+            units.add(unit);
+        }
+
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer(errorLimit);
+        Linker linker = new Linker();
+        linker.diagnostics = diagnostics;
+        Code code = linker.link(units);
+        diagnostics.print(err);
+        out.println(linker.errors + " errors found.");
+        errors += linker.errors;
+        if (code != null) {
+            if (optimize) {
+                code = optimize(code, false);
+            }
+            try {
+                code.write(create(output));
+            } catch (IOException ex) {
+                err.println("Error writing output file");
+                errors++;
+                ex.printStackTrace(err);
+            }
+        }
+    }
+
+    private Unit readUnit(String fileName,
+            Map<String, Struct> classes) {
+        try {
+            return Unit.read(new BufferedInputStream(
+                    new FileInputStream(fileName)), classes);
+        } catch (FileNotFoundException ex) {
+            err.println(fileName + " not found, exiting...");
+            errors++;
+        } catch (IOException ex) {
+            err.println("Error reading unit file " + fileName + ": "
+                    + ex.getMessage());
+            errors++;
+        }
+        return null;
+    }
+
+    private void verify(String fileName) {
+        try {
+            ObjectFile file = ObjectFile.map(new File(fileName));
+            DiagnosticBuffer diagnostics = new DiagnosticBuffer(errorLimit);
+            Verifier verifier = new Verifier(file);
+            verifier.diagnostics = diagnostics;
+            verifier.verify();
+            diagnostics.print(err);
+            for (MethodInfo method : verifier.methods) {
+                out.println("Method at " + method.address + ": "
+                        + method.parameters + " parameters, "
+                        + method.locals + " locals, "
+                        + "max stack " + method.maxStack);
+            }
+            out.println(verifier.errors + " errors found.");
+            errors += verifier.errors;
+        } catch (FileNotFoundException ex) {
+            err.println(fileName + " not found, exiting...");
+            errors++;
+        } catch (IOException ex) {
+            err.println("Error reading object file: "
+                    + ex.getMessage());
+            errors++;
+        }
+    }
+
+    private void histogram(String fileName) {
+        try {
+            ObjectFile file = ObjectFile.map(new File(fileName));
+            DebugInfo debug = null;
+            File debugFile = new File(outputFileName(fileName, ".dbg"));
+            if (debugFile.exists()) {
+                debug = DebugInfo.read(new BufferedInputStream(
+                        new FileInputStream(debugFile)));
+            }
+            new Histogram(file, debug).writeCsv(out);
+        } catch (FileNotFoundException ex) {
+            err.println(fileName + " not found, exiting...");
+            errors++;
+        } catch (IOException ex) {
+            err.println("Error reading object file: "
+                    + ex.getMessage());
+            errors++;
+        }
+    }
+
+    /**
+     * Resolves a file name given on the command line
+     */
+    private String path(String fileName) {
+        File file = new File(fileName);
+        if (directory == null || file.isAbsolute()) {
+            return fileName;
         }
+        return new File(directory, fileName).getPath();
+    }
+
+    private OutputStream create(String fileName)
+            throws FileNotFoundException {
+        outputs.add(fileName);
+        return new FileOutputStream(fileName);
     }
 
-    private static String objFileName(String s) {
+    private static String outputFileName(String s, String extension) {
         int i = s.lastIndexOf('.');
         if (i < 0) {
-            return s + ".obj";
+            return s + extension;
         } else {
-            return s.substring(0, i) + ".obj";
+            return s.substring(0, i) + extension;
         }
     }
 
@@ -5,6 +5,7 @@
 
 package com.aperigeek.mj.codegen;
 
+import com.aperigeek.mj.stats.Stats;
 import com.aperigeek.mj.symtab.SymbolTable;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -73,6 +74,45 @@ public class Code {
             OP_BPRINT = 53,
             OP_TRAP = 54;
 
+    /**
+     * Number of operand bytes following each opcode, indexed by opcode
+     */
+    private static final int[] OPERAND_SIZES = new int[OP_TRAP + 1];
+
+    static {
+        OPERAND_SIZES[OP_LOAD] = 1;
+        OPERAND_SIZES[OP_STORE] = 1;
+        OPERAND_SIZES[OP_GETSTATIC] = 2;
+        OPERAND_SIZES[OP_PUTSTATIC] = 2;
+        OPERAND_SIZES[OP_GETFIELD] = 2;
+        OPERAND_SIZES[OP_PUTFIELD] = 2;
+        OPERAND_SIZES[OP_CONST] = 4;
+        OPERAND_SIZES[OP_NEW] = 2;
+        OPERAND_SIZES[OP_NEWARRAY] = 1;
+        for (int op = OP_JMP; op <= OP_JGE; op++) {
+            OPERAND_SIZES[op] = 2;
+        }
+        OPERAND_SIZES[OP_CALL] = 2;
+        OPERAND_SIZES[OP_ENTER] = 2;
+        OPERAND_SIZES[OP_TRAP] = 1;
+    }
+
+    /**
+     * Instruction mnemonics, indexed by opcode
+     */
+    private static final String[] OPCODE_NAMES = {null,
+        "load", "load0", "load1", "load2", "load3",
+        "store", "store0", "store1", "store2", "store3",
+        "getstatic", "putstatic", "getfield", "putfield",
+        "const0", "const1", "const2", "const3", "const4", "const5",
+        "constm1", "const",
+        "add", "sub", "mul", "div", "rem", "neg", "shl", "shr",
+        "new", "newarray", "aload", "astore", "baload", "bastore",
+        "arraylength", "pop",
+        "jmp", "jeq", "jne", "jlt", "jle", "jgt", "jge",
+        "call", "return", "enter", "exit",
+        "read", "print", "bread", "bprint", "trap"};
+
     private Map<Integer, Integer> inverse = new HashMap<Integer, Integer>();
 
     {
@@ -103,10 +143,67 @@ public class Code {
      */
     public int dataSize;
 
+    /**
+     * Debug informations, or null if they aren't generated
+     */
+    public DebugInfo debug;
+
+    /**
+     * Measures the output of the code, or null
+     */
+    public Stats stats;
+
     public Code() {
         buffer = new byte[BUFFER_SIZE];
     }
 
+    /**
+     * Checks whether the given value is a valid opcode
+     * @param op the value to test
+     */
+    public static boolean isOpcode(int op) {
+        return op >= OP_LOAD && op <= OP_TRAP;
+    }
+
+    /**
+     * Computes the total size of an instruction, opcode included
+     * @param op the instruction opcode, which has to be valid
+     * @return the instruction size, in bytes
+     */
+    public static int instructionSize(int op) {
+        return 1 + OPERAND_SIZES[op];
+    }
+
+    /**
+     * Gets the mnemonic of an instruction
+     * @param op the instruction opcode, which has to be valid
+     */
+    public static String opcodeName(int op) {
+        return OPCODE_NAMES[op];
+    }
+
+    /**
+     * Records the start of a method at the current address. Does nothing
+     * unless debug informations are generated.
+     * @param name the method name
+     */
+    public void method(String name) {
+        if (debug != null) {
+            debug.addMethod(name, pc);
+        }
+    }
+
+    /**
+     * Records that the code generated from now on comes from the given
+     * source line. Does nothing unless debug informations are generated.
+     * @param line the source line
+     */
+    public void line(int line) {
+        if (debug != null) {
+            debug.addLine(pc, line);
+        }
+    }
+
     public void remove() {
         pc--;
     }
@@ -124,11 +221,17 @@ public class Code {
             byte[] oldBuffer = buffer;
             buffer = new byte[oldBuffer.length + BUFFER_SIZE];
             System.arraycopy(oldBuffer, 0, buffer, 0, oldBuffer.length);
-            pc++;
         }
         buffer[pc++] = (byte) x;
     }
 
+    public void put(int pos, int x) {
+        int oldpc = pc;
+        pc = pos;
+        put(x);
+        pc = oldpc;
+    }
+
     public void put2(int x) {
         put(x >> 8);
         put(x);
@@ -146,6 +249,45 @@ public class Code {
         put2(x);
     }
 
+    /**
+     * Appends the code generated in another buffer
+     * @param other the other buffer
+     */
+    public void append(Code other) {
+        if (pc + other.pc > buffer.length) {
+            byte[] oldBuffer = buffer;
+            buffer = new byte[pc + other.pc + BUFFER_SIZE];
+            System.arraycopy(oldBuffer, 0, buffer, 0, pc);
+        }
+        System.arraycopy(other.buffer, 0, buffer, pc, other.pc);
+        pc += other.pc;
+    }
+
+    /**
+     * Reads back an unsigned byte of generated code
+     * @param pos byte address
+     */
+    public int get(int pos) {
+        return buffer[pos] & 0xff;
+    }
+
+    /**
+     * Reads back an unsigned 16 bits value, such as an address, of
+     * generated code
+     * @param pos address of the first byte
+     */
+    public int get2(int pos) {
+        return (get(pos) << 8) | get(pos + 1);
+    }
+
+    /**
+     * Reads back a 32 bits value of generated code
+     * @param pos address of the first byte
+     */
+    public int get4(int pos) {
+        return (get2(pos) << 16) | (get2(pos + 2) & 0xffff);
+    }
+
     public void putJump(int adr) {
         put(OP_JMP);
         put2(adr);
@@ -213,6 +355,24 @@ public class Code {
     }
 
     public void write(OutputStream out) throws IOException {
+        if (stats == null) {
+            writeObject(out);
+            return;
+        }
+        stats.enter(Stats.WRITE);
+        try {
+            for (int i = 0; i < pc && isOpcode(buffer[i]);
+                    i += instructionSize(buffer[i])) {
+                stats.instructions++;
+            }
+            stats.codeSize += pc;
+            writeObject(out);
+        } finally {
+            stats.exit();
+        }
+    }
+
+    private void writeObject(OutputStream out) throws IOException {
         int codeSize = pc;
         put('M');
         put('J');
@@ -222,6 +382,8 @@ public class Code {
         out.write(buffer, codeSize, pc - codeSize);
         out.write(buffer, 0, codeSize);
         out.close();
+        // The header is only built for output, it isn't part of the code
+        pc = codeSize;
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Debug informations, written next to the object file.
+ *
+ * The method table associates each method name to its address, so that
+ * tools working on object files (profilers, debuggers...) can resolve
+ * addresses to method names.
+ *
+ * The line table associates addresses to source code lines. An entry is
+ * recorded for each address where the source line changes, and applies
+ * up to the next entry. In the file, addresses and lines are stored as
+ * variable length deltas from the previous entry, which usually takes two
+ * bytes per entry.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class DebugInfo {
+
+    /**
+     * Method names, in code order
+     */
+    public List<String> methodNames = new ArrayList<String>();
+
+    /**
+     * Method addresses, in code order
+     */
+    public List<Integer> methodAddresses = new ArrayList<Integer>();
+
+    /**
+     * Line table addresses, in increasing order
+     */
+    private int[] linePcs = new int[64];
+
+    /**
+     * Line table source lines
+     */
+    private int[] lines = new int[64];
+
+    /**
+     * Number of entries in the line table
+     */
+    private int lineCount;
+
+    /**
+     * Records a new method
+     * @param name method name
+     * @param address address of the method first instruction
+     */
+    public void addMethod(String name, int address) {
+        methodNames.add(name);
+        methodAddresses.add(address);
+    }
+
+    /**
+     * Records that the code generated from the given address comes from
+     * the given source line
+     * @param pc the address
+     * @param line the source line
+     */
+    public void addLine(int pc, int line) {
+        // Code generated since the last entry may have been removed
+        while (lineCount > 0 && linePcs[lineCount - 1] >= pc) {
+            lineCount--;
+        }
+        if (lineCount > 0 && lines[lineCount - 1] == line) {
+            return;
+        }
+
+        if (lineCount == lines.length) {
+            int[] oldPcs = linePcs;
+            int[] oldLines = lines;
+            linePcs = new int[oldPcs.length * 2];
+            lines = new int[oldLines.length * 2];
+            System.arraycopy(oldPcs, 0, linePcs, 0, lineCount);
+            System.arraycopy(oldLines, 0, lines, 0, lineCount);
+        }
+        linePcs[lineCount] = pc;
+        lines[lineCount] = line;
+        lineCount++;
+    }
+
+    /**
+     * Appends the informations of code generated separately, and placed
+     * after the code described so far
+     * @param other the informations to append
+     * @param base address of the appended code
+     */
+    public void append(DebugInfo other, int base) {
+        for (int i = 0; i < other.methodNames.size(); i++) {
+            addMethod(other.methodNames.get(i),
+                    base + other.methodAddresses.get(i));
+        }
+        for (int i = 0; i < other.lineCount; i++) {
+            addLine(base + other.linePcs[i], other.lines[i]);
+        }
+    }
+
+    /**
+     * Finds the source line the code at the given address comes from
+     * @param pc the address
+     * @return the source line, or 0 if unknown
+     */
+    public int lineAt(int pc) {
+        int low = 0;
+        int high = lineCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (linePcs[middle] <= pc) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (found == -1) {
+            return 0;
+        }
+        return lines[found];
+    }
+
+    /**
+     * Finds the method containing the given address
+     * @param pc the address
+     * @return the method name, or null if pc is before the first method
+     */
+    public String methodAt(int pc) {
+        int low = 0;
+        int high = methodAddresses.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (methodAddresses.get(middle) <= pc) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (found == -1) {
+            return null;
+        }
+        return methodNames.get(found);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte('M');
+        data.writeByte('J');
+        data.writeByte('D');
+        data.writeByte('B');
+        data.writeInt(methodNames.size());
+        for (int i = 0; i < methodNames.size(); i++) {
+            data.writeInt(methodAddresses.get(i));
+            data.writeUTF(methodNames.get(i));
+        }
+        data.writeInt(lineCount);
+        int pc = 0;
+        int line = 0;
+        for (int i = 0; i < lineCount; i++) {
+            writeVarInt(data, linePcs[i] - pc);
+            // Lines may go backwards, the delta is zigzag encoded
+            int delta = lines[i] - line;
+            writeVarInt(data, (delta << 1) ^ (delta >> 31));
+            pc = linePcs[i];
+            line = lines[i];
+        }
+        data.close();
+    }
+
+    /**
+     * Reads debug informations, as written by write
+     * @param in stream to read from. The stream is closed once read.
+     * @return the debug informations
+     * @throws IOException if the stream can't be read, or doesn't contain
+     * valid debug informations
+     */
+    public static DebugInfo read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedByte() != 'M'
+                    || data.readUnsignedByte() != 'J'
+                    || data.readUnsignedByte() != 'D'
+                    || data.readUnsignedByte() != 'B') {
+                throw new IOException("Not a MicroJava debug file");
+            }
+
+            DebugInfo info = new DebugInfo();
+            int methods = data.readInt();
+            for (int i = 0; i < methods; i++) {
+                int address = data.readInt();
+                info.addMethod(data.readUTF(), address);
+            }
+            int entries = data.readInt();
+            int pc = 0;
+            int line = 0;
+            for (int i = 0; i < entries; i++) {
+                pc += readVarInt(data);
+                int delta = readVarInt(data);
+                line += (delta >>> 1) ^ -(delta & 1);
+                info.addLine(pc, line);
+            }
+
+            return info;
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Writes an unsigned value, 7 bits per byte, low bits first. The high
+     * bit of each byte is set when more bytes follow.
+     */
+    private static void writeVarInt(DataOutputStream data, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            data.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte(value);
+    }
+
+    /**
+     * Reads a value written by writeVarInt
+     */
+    private static int readVarInt(DataInputStream data) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
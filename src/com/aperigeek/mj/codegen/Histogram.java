@@ -0,0 +1,96 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opcode histogram of an object file.
+ *
+ * Instructions are counted per opcode, for each method and for the whole
+ * program. Comparing the histograms of the same program compiled by two
+ * versions of the compiler shows the effect of code generation changes.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Histogram {
+
+    /**
+     * Method names, or addresses if no debug informations are available
+     */
+    public List<String> methods = new ArrayList<String>();
+
+    /**
+     * Instruction counts of each method, indexed by opcode
+     */
+    public List<int[]> counts = new ArrayList<int[]>();
+
+    /**
+     * Instruction counts of the whole program, indexed by opcode
+     */
+    public int[] total = new int[Code.OP_TRAP + 1];
+
+    /**
+     * Computes the histogram of an object file
+     * @param file the object file. It should have been verified first.
+     * @param debug debug informations used to name methods, or null
+     */
+    public Histogram(ObjectFile file, DebugInfo debug) {
+        int[] current = null;
+        int pc = 0;
+        while (pc < file.codeSize) {
+            int op = file.get(pc);
+            if (!Code.isOpcode(op)) {
+                break;
+            }
+
+            if (op == Code.OP_ENTER || current == null) {
+                String name = null;
+                if (debug != null) {
+                    name = debug.methodAt(pc);
+                }
+                if (name == null) {
+                    name = "@" + pc;
+                }
+                methods.add(name);
+                current = new int[Code.OP_TRAP + 1];
+                counts.add(current);
+            }
+
+            current[op]++;
+            total[op]++;
+            pc += Code.instructionSize(op);
+        }
+    }
+
+    /**
+     * Writes the histogram as CSV, with one row per method and opcode, and
+     * a row per opcode for the whole program, whose method is "*".
+     * Opcodes that don't appear aren't listed.
+     * @param out stream to write to
+     */
+    public void writeCsv(PrintStream out) {
+        out.println("method,opcode,count,bytes");
+        for (int i = 0; i < methods.size(); i++) {
+            writeCsv(out, methods.get(i), counts.get(i));
+        }
+        writeCsv(out, "*", total);
+    }
+
+    private void writeCsv(PrintStream out, String method, int[] counts) {
+        for (int op = Code.OP_LOAD; op <= Code.OP_TRAP; op++) {
+            if (counts[op] != 0) {
+                out.println(method + "," + Code.opcodeName(op) + ","
+                        + counts[op] + ","
+                        + counts[op] * Code.instructionSize(op));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * View of an object file, as written by Code.write
+ *
+ * The code section is either read in memory, or mapped from the file.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class ObjectFile {
+
+    /**
+     * Size of the object file header: "MJ", codeSize, dataSize and mainPc
+     */
+    public static final int HEADER_SIZE = 14;
+
+    /**
+     * Size of the code section
+     */
+    public int codeSize;
+
+    /**
+     * Size of the data memory space
+     */
+    public int dataSize;
+
+    /**
+     * Main procedure pointer
+     */
+    public int mainPc;
+
+    /**
+     * Code section, codeSize bytes long
+     */
+    private ByteBuffer code;
+
+    /**
+     * Reads an object file
+     * @param in stream to read the object file from. The stream is closed
+     * once the file has been read.
+     * @return the object file
+     * @throws IOException if the stream can't be read, or doesn't contain
+     * a valid object file
+     */
+    public static ObjectFile read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedByte() != 'M'
+                    || data.readUnsignedByte() != 'J') {
+                throw new IOException("Not a MicroJava object file");
+            }
+
+            ObjectFile file = new ObjectFile();
+            file.codeSize = data.readInt();
+            file.dataSize = data.readInt();
+            file.mainPc = data.readInt();
+
+            if (file.codeSize < 0) {
+                throw new IOException("Invalid code size: " + file.codeSize);
+            }
+            byte[] code = new byte[file.codeSize];
+            data.readFully(code);
+            file.code = ByteBuffer.wrap(code);
+
+            return file;
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Maps an object file in memory.
+     *
+     * Only the header is read, the code section is mapped and its pages
+     * are loaded by the operating system as they get accessed. This makes
+     * opening a file independent of its size.
+     * @param path the object file path
+     * @return the object file
+     * @throws IOException if the file can't be read, or isn't a valid
+     * object file
+     */
+    public static ObjectFile map(File path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a MicroJava object file");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, HEADER_SIZE);
+            if (header.get() != 'M' || header.get() != 'J') {
+                throw new IOException("Not a MicroJava object file");
+            }
+
+            ObjectFile file = new ObjectFile();
+            file.codeSize = header.getInt();
+            file.dataSize = header.getInt();
+            file.mainPc = header.getInt();
+
+            if (file.codeSize < 0
+                    || channel.size() < HEADER_SIZE + (long) file.codeSize) {
+                throw new IOException("Invalid code size: " + file.codeSize);
+            }
+            // The mapping remains valid once the channel is closed
+            file.code = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE, file.codeSize);
+
+            return file;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an unsigned byte from the code section
+     * @param adr byte address
+     */
+    public int get(int adr) {
+        return code.get(adr) & 0xff;
+    }
+
+    /**
+     * Reads an unsigned 16 bits value, such as an address, from the code
+     * section
+     * @param adr address of the first byte
+     */
+    public int get2(int adr) {
+        return code.getChar(adr);
+    }
+
+    /**
+     * Reads a 32 bits value from the code section
+     * @param adr address of the first byte
+     */
+    public int get4(int adr) {
+        return code.getInt(adr);
+    }
+
+}
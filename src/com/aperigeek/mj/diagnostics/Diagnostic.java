@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.diagnostics;
+
+/**
+ * Compilation error or warning.
+ *
+ * A diagnostic is identified by a code. Its message is only formatted,
+ * from the code and the diagnostic arguments, when it's displayed.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Diagnostic {
+
+    public static final int ERROR = 0,
+            WARNING = 1;
+
+    public static final int TOKEN_EXPECTED = 0,
+            INVALID_NUMBER = 1,
+            ALREADY_DECLARED = 2,
+            UNRESOLVED_NAME = 3,
+            UNRESOLVED_FIELD = 4,
+            UNRESOLVED_TYPE = 5,
+            UNRESOLVED_VARIABLE = 6,
+            UNRESOLVED_METHOD = 7,
+            TOO_MANY_GLOBALS = 8,
+            TOO_MANY_FIELDS = 9,
+            TOO_MANY_LOCALS = 10,
+            MAIN_REQUIRED = 11,
+            MAIN_PARAMETERS = 12,
+            MAIN_TYPE = 13,
+            CONSTANT_EXPECTED = 14,
+            CONSTANT_TYPE = 15,
+            BODY_END = 16,
+            ILLEGAL_STATEMENT = 17,
+            ASSIGNMENT_OPERAND = 18,
+            ASSIGNMENT_TYPE = 19,
+            NOT_A_METHOD = 20,
+            RETURN_TYPE = 21,
+            RETURN_VALUE = 22,
+            READ_OPERAND = 23,
+            READ_TYPE = 24,
+            PRINT_TYPE = 25,
+            RELATIONAL_OPERATOR = 26,
+            COMPARISON_OPERATOR = 27,
+            COMPARISON_TYPE = 28,
+            REFERENCE_COMPARISON = 29,
+            ADDITION_TYPE = 30,
+            MULTIPLICATION_TYPE = 31,
+            ILLEGAL_CALL = 32,
+            ARRAY_SIZE_TYPE = 33,
+            NOT_A_CLASS = 34,
+            FIELD_ACCESS = 35,
+            ELEMENT_ACCESS = 36,
+            INDEX_TYPE = 37,
+            PARAMETER_TYPE = 38,
+            PARAMETER_COUNT = 39,
+            DECLARED_BY_UNITS = 40,
+            UNDECLARED_IN_UNITS = 41,
+            CHANGED_IN_UNITS = 42,
+            MAIN_ENTRY = 43,
+            MAIN_ENTRY_PARAMETERS = 44,
+            INVALID_OPCODE = 45,
+            TRUNCATED_INSTRUCTION = 46,
+            PARAMETERS_OUT_OF_FRAME = 47,
+            CODE_OUTSIDE_METHODS = 48,
+            EMPTY_METHOD = 49,
+            ELEMENT_SIZE = 50,
+            CALL_TARGET = 51,
+            UNEXPECTED_OPCODE = 52,
+            STACK_UNDERFLOW = 53,
+            STACK_NOT_EMPTY = 54,
+            RETURNED_VALUES = 55,
+            JUMP_TARGET = 56,
+            METHOD_END = 57,
+            STACK_DEPTH = 58,
+            LOCAL_INDEX = 59,
+            STATIC_INDEX = 60;
+
+    /**
+     * Message formats, by code
+     */
+    private static final String[] MESSAGES = {
+        "%s expected, found %s",
+        "Invalid number, out of range: %s",
+        "%s already declared",
+        "%s can't be resolved to a name",
+        "%s can't be find as a field",
+        "%s can't be resolved to a type",
+        "%s can't be resolved to a variable",
+        "%s can't be resolved to a method",
+        "Too many global variables",
+        "Too many field in class",
+        "Too many local variables for method",
+        "main method is required",
+        "main method must have no parameters",
+        "main method must return void",
+        "Expected number or char constant",
+        "Incompatible types in constant declaration",
+        "Method body doesn't end where expected",
+        "Illegal start of statement: %s",
+        "Illegal left-hand side operand in assignment",
+        "Incompatible types in assignment",
+        "Designator isn't a valid method",
+        "Invalid expression type in return statement",
+        "Missing return value in return statement",
+        "Illegal operand in read statement",
+        "Operand has to be of type int or char in read statement",
+        "Illegal expression type in print statement",
+        "Relational operator expected",
+        "Illegal comparison operator",
+        "Incompatible types in comparison",
+        "Reference types can only be compared for equality and inequality",
+        "int required in addition",
+        "int required in multiplication",
+        "Illegal method call",
+        "Array size must be an int",
+        "Illegal instantiation: type isn't a class",
+        "Illegal field access on a non-object var",
+        "Illegal element access on a non-array var",
+        "Array index must be an int",
+        "Incompatible parameters type in method call",
+        "Wrong number of parameters in method call",
+        "%s declared by several units",
+        "%s isn't declared by any unit",
+        "%s has changed since the units using it were compiled",
+        "Address %d: main pointer isn't a method entry point",
+        "Address %d: main method must have no parameters",
+        "Address %d: Invalid opcode %d",
+        "Address %d: Truncated instruction",
+        "Address %d: More parameters than local variables",
+        "Address %d: Code outside of any method",
+        "Address %d: Empty method",
+        "Address %d: Invalid array element size",
+        "Address %d: Call target isn't a method entry point",
+        "Address %d: Unexpected opcode %d in method body",
+        "Address %d: Expression stack underflow",
+        "Address %d: Too many values on the expression stack "
+                + "when returning",
+        "Address %d: Inconsistent number of returned values",
+        "Address %d: Invalid jump target %d",
+        "Address %d: Control falls off the end of the method",
+        "Address %d: Inconsistent expression stack depth at %d",
+        "Address %d: Local variable index out of frame: %d",
+        "Address %d: Static variable index out of data: %d"
+    };
+
+    public int severity;
+
+    public int code;
+
+    /**
+     * Source position, line 0 if the diagnostic doesn't refer to the source
+     */
+    public int line;
+
+    public int col;
+
+    public Object[] arguments;
+
+    public Diagnostic(int severity, int code, int line, int col,
+            Object... arguments) {
+        this.severity = severity;
+        this.code = code;
+        this.line = line;
+        this.col = col;
+        this.arguments = arguments;
+    }
+
+    public String message() {
+        return String.format(MESSAGES[code], arguments);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        if (line > 0) {
+            text.append("Line ").append(line)
+                    .append(", Col ").append(col).append(": ");
+        }
+        if (severity == WARNING) {
+            text.append("warning: ");
+        }
+        return text.append(message()).toString();
+    }
+
+}
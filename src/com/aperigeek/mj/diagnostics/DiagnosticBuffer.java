@@ -0,0 +1,123 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.diagnostics;
+
+import java.io.PrintStream;
+
+/**
+ * Collects diagnostics, up to a limit.
+ *
+ * Diagnostics are kept as codes, positions and arguments, messages are
+ * only formatted when printed. Once the limit is reached, diagnostics are
+ * only counted.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class DiagnosticBuffer implements DiagnosticSink {
+
+    public static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * Maximum number of diagnostics kept
+     */
+    private int limit;
+
+    /**
+     * Number of diagnostics kept
+     */
+    private int size;
+
+    /**
+     * Severity and code, line and column of each diagnostic kept
+     */
+    private int[] entries = new int[3 * 16];
+
+    private Object[][] arguments = new Object[16][];
+
+    private int errors;
+
+    private int warnings;
+
+    public DiagnosticBuffer() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit maximum number of diagnostics kept
+     */
+    public DiagnosticBuffer(int limit) {
+        this.limit = limit;
+    }
+
+    public synchronized void report(int severity, int code, int line,
+            int col, Object... arguments) {
+        if (severity == Diagnostic.ERROR) {
+            errors++;
+        } else {
+            warnings++;
+        }
+        if (size == limit) {
+            return;
+        }
+
+        if (size == this.arguments.length) {
+            int[] oldEntries = entries;
+            Object[][] oldArguments = this.arguments;
+            entries = new int[oldEntries.length * 2];
+            this.arguments = new Object[oldArguments.length * 2][];
+            System.arraycopy(oldEntries, 0, entries, 0, 3 * size);
+            System.arraycopy(oldArguments, 0, this.arguments, 0, size);
+        }
+        entries[3 * size] = (severity << 16) | code;
+        entries[3 * size + 1] = line;
+        entries[3 * size + 2] = col;
+        this.arguments[size] = arguments;
+        size++;
+    }
+
+    /**
+     * Number of diagnostics kept
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets a diagnostic kept
+     * @param i diagnostic index, in reporting order
+     */
+    public synchronized Diagnostic get(int i) {
+        return new Diagnostic(entries[3 * i] >> 16, entries[3 * i] & 0xffff,
+                entries[3 * i + 1], entries[3 * i + 2], arguments[i]);
+    }
+
+    /**
+     * Number of errors reported, including the ones which weren't kept
+     */
+    public synchronized int errors() {
+        return errors;
+    }
+
+    public synchronized int warnings() {
+        return warnings;
+    }
+
+    /**
+     * Prints the diagnostics kept, and the number of the other ones
+     * @param out stream to print to
+     */
+    public synchronized void print(PrintStream out) {
+        for (int i = 0; i < size; i++) {
+            out.println(get(i));
+        }
+        int dropped = errors + warnings - size;
+        if (dropped > 0) {
+            out.println(dropped + " more diagnostics not shown");
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.diagnostics;
+
+/**
+ * Receives the diagnostics of a compilation.
+ *
+ * Implementations have to be thread safe: a sink may be shared by
+ * concurrent compilations.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public interface DiagnosticSink {
+
+    /**
+     * Reports a diagnostic
+     * @param severity Diagnostic.ERROR or Diagnostic.WARNING
+     * @param code diagnostic code, see Diagnostic
+     * @param line source line, or 0 if the diagnostic doesn't refer to
+     * the source
+     * @param col source column
+     * @param arguments arguments of the diagnostic message
+     */
+    void report(int severity, int code, int line, int col,
+            Object... arguments);
+
+}
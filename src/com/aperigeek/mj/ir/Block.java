@@ -0,0 +1,55 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Basic block: sequence of instructions, only entered by its first
+ * instruction. Only the last instruction may be a jump, a return or a
+ * trap.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Block {
+
+    public List<Instruction> instructions = new ArrayList<Instruction>();
+
+    /**
+     * Block executed after this one when its last instruction doesn't
+     * transfer control, or null if the execution can't continue
+     */
+    public Block next;
+
+    /**
+     * Gets the last instruction of the block
+     * @return the last instruction, or null if the block is empty
+     */
+    public Instruction last() {
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        return instructions.get(instructions.size() - 1);
+    }
+
+    /**
+     * Lists the blocks that may be executed after this one
+     */
+    public List<Block> successors() {
+        List<Block> successors = new ArrayList<Block>(2);
+        Instruction last = last();
+        if (last != null && last.isJump()) {
+            successors.add(last.target);
+        }
+        if (next != null && (last == null || last.fallsThrough())) {
+            successors.add(next);
+        }
+        return successors;
+    }
+
+}
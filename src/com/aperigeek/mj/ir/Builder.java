@@ -0,0 +1,246 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.codegen.Code;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the intermediate representation of the code generated by the
+ * parser.
+ *
+ * Methods are delimited by their OP_ENTER instruction, and split in basic
+ * blocks at jump targets and after each jump, return or trap.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Builder {
+
+    /**
+     * Code to build the representation of
+     */
+    private Code code;
+
+    /**
+     * Methods, indexed by address
+     */
+    private Map<Integer, Method> methods = new HashMap<Integer, Method>();
+
+    /**
+     * Calls, to be resolved once all methods are known
+     */
+    private List<Instruction> calls = new ArrayList<Instruction>();
+
+    public Builder(Code code) {
+        this.code = code;
+    }
+
+    public Program build() {
+        Program program = new Program();
+        program.dataSize = code.dataSize;
+
+        List<Integer> starts = new ArrayList<Integer>();
+        int pc = 0;
+        while (pc < code.pc) {
+            int op = code.get(pc);
+            if (op == Code.OP_ENTER) {
+                starts.add(pc);
+            }
+            pc += Code.instructionSize(op);
+        }
+        starts.add(code.pc);
+
+        for (int i = 0; i < starts.size() - 1; i++) {
+            Method method = buildMethod(starts.get(i), starts.get(i + 1));
+            program.methods.add(method);
+            methods.put(method.address, method);
+        }
+
+        for (Instruction call : calls) {
+            call.method = methods.get(call.operand);
+        }
+        program.main = methods.get(code.mainPc);
+
+        // The number of values returned by a method is only known once the
+        // method has been analysed, and it's required to analyse calls to
+        // that method. Methods are analysed until these numbers are stable.
+        boolean changed = true;
+        for (int pass = 0; changed && pass <= program.methods.size();
+                pass++) {
+            changed = false;
+            for (Method method : program.methods) {
+                int results = results(method);
+                if (results != method.results) {
+                    method.results = results;
+                    changed = true;
+                }
+            }
+        }
+
+        return program;
+    }
+
+    /**
+     * Computes the number of values a method leaves on the expression
+     * stack when returning, using the current results of called methods.
+     * Until then, returns following a recursive call may seem to leave
+     * less values, the largest number is kept.
+     * @param method the method
+     * @return the number of values, 0 if the method never returns
+     */
+    private int results(Method method) {
+        int results = 0;
+        Map<Block, Integer> depths = new HashMap<Block, Integer>();
+        Set<Block> queued = new HashSet<Block>();
+        LinkedList<Block> work = new LinkedList<Block>();
+        Block entry = method.blocks.get(0);
+        depths.put(entry, 0);
+        work.add(entry);
+        queued.add(entry);
+
+        while (!work.isEmpty()) {
+            Block block = work.removeFirst();
+            int depth = depths.get(block);
+            for (Instruction instruction : block.instructions) {
+                depth += instruction.pushes() - instruction.pops();
+                if (instruction.opcode == Code.OP_RETURN) {
+                    results = Math.max(results, depth);
+                }
+            }
+            for (Block successor : block.successors()) {
+                if (queued.add(successor)) {
+                    depths.put(successor, depth);
+                    work.add(successor);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Builds a method
+     * @param start address of the OP_ENTER instruction
+     * @param end address of the first byte following the method
+     */
+    private Method buildMethod(int start, int end) {
+        Method method = new Method();
+        method.address = start;
+        method.parameters = code.get(start + 1);
+        method.locals = code.get(start + 2);
+        if (code.debug != null) {
+            method.name = code.debug.methodAt(start);
+        }
+
+        int body = start + Code.instructionSize(Code.OP_ENTER);
+
+        // Finds the first instruction of each block
+        boolean[] leaders = new boolean[end - start];
+        leaders[body - start] = true;
+        int pc = body;
+        while (pc < end) {
+            int op = code.get(pc);
+            int next = pc + Code.instructionSize(op);
+            if (op >= Code.OP_JMP && op <= Code.OP_JGE) {
+                leaders[code.get2(pc + 1) - start] = true;
+            }
+            if ((op >= Code.OP_JMP && op <= Code.OP_JGE)
+                    || op == Code.OP_RETURN || op == Code.OP_TRAP) {
+                if (next < end) {
+                    leaders[next - start] = true;
+                }
+            }
+            pc = next;
+        }
+
+        Map<Integer, Block> blocks = new HashMap<Integer, Block>();
+        List<Instruction> jumps = new ArrayList<Instruction>();
+
+        Block block = null;
+        pc = body;
+        while (pc < end) {
+            if (leaders[pc - start]) {
+                Block previous = block;
+                block = new Block();
+                method.blocks.add(block);
+                blocks.put(pc, block);
+                if (previous != null) {
+                    previous.next = block;
+                }
+            }
+
+            int op = code.get(pc);
+            Instruction instruction = decode(pc);
+            if (code.debug != null) {
+                instruction.line = code.debug.lineAt(pc);
+            }
+            if (instruction.isJump()) {
+                jumps.add(instruction);
+            } else if (op == Code.OP_CALL) {
+                calls.add(instruction);
+            }
+            block.instructions.add(instruction);
+
+            pc += Code.instructionSize(op);
+        }
+
+        for (Instruction jump : jumps) {
+            jump.target = blocks.get(jump.operand);
+        }
+
+        return method;
+    }
+
+    /**
+     * Decodes a single instruction. Short forms are replaced by their
+     * generic form, jump and call operands are the target address.
+     * @param pc address of the instruction
+     */
+    private Instruction decode(int pc) {
+        int op = code.get(pc);
+        switch (op) {
+            case Code.OP_LOAD0:
+            case Code.OP_LOAD1:
+            case Code.OP_LOAD2:
+            case Code.OP_LOAD3:
+                return new Instruction(Code.OP_LOAD, op - Code.OP_LOAD0);
+            case Code.OP_STORE0:
+            case Code.OP_STORE1:
+            case Code.OP_STORE2:
+            case Code.OP_STORE3:
+                return new Instruction(Code.OP_STORE, op - Code.OP_STORE0);
+            case Code.OP_CONST0:
+            case Code.OP_CONST1:
+            case Code.OP_CONST2:
+            case Code.OP_CONST3:
+            case Code.OP_CONST4:
+            case Code.OP_CONST5:
+                return new Instruction(Code.OP_CONST, op - Code.OP_CONST0);
+            case Code.OP_CONSTM1:
+                return new Instruction(Code.OP_CONST, -1);
+            case Code.OP_LOAD:
+            case Code.OP_STORE:
+            case Code.OP_NEWARRAY:
+            case Code.OP_TRAP:
+                return new Instruction(op, code.get(pc + 1));
+            case Code.OP_CONST:
+                return new Instruction(op, code.get4(pc + 1));
+            default:
+                if (Code.instructionSize(op) == 3) {
+                    return new Instruction(op, code.get2(pc + 1));
+                }
+                return new Instruction(op);
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.codegen.Code;
+
+/**
+ * Single instruction of the intermediate representation.
+ *
+ * Instructions use the bytecode opcodes, with the short forms of loads,
+ * stores and constants (OP_LOAD0, OP_CONST1...) replaced by their generic
+ * form. Jumps point to blocks, and calls to methods, instead of addresses.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Instruction {
+
+    public int opcode;
+
+    /**
+     * Operand of the instruction: local or static variable index, field
+     * index, constant value, array element size, or trap code
+     */
+    public int operand;
+
+    /**
+     * Jumps: target block
+     */
+    public Block target;
+
+    /**
+     * Calls: called method
+     */
+    public Method method;
+
+    /**
+     * Source line the instruction comes from, 0 if unknown
+     */
+    public int line;
+
+    public Instruction(int opcode) {
+        this.opcode = opcode;
+    }
+
+    public Instruction(int opcode, int operand) {
+        this(opcode);
+        this.operand = operand;
+    }
+
+    /**
+     * Number of values popped from the expression stack by the instruction
+     */
+    public int pops() {
+        switch (opcode) {
+            case Code.OP_STORE:
+            case Code.OP_PUTSTATIC:
+            case Code.OP_GETFIELD:
+            case Code.OP_NEG:
+            case Code.OP_NEWARRAY:
+            case Code.OP_ARRAYLENGTH:
+            case Code.OP_POP:
+                return 1;
+            case Code.OP_PUTFIELD:
+            case Code.OP_ADD:
+            case Code.OP_SUB:
+            case Code.OP_MUL:
+            case Code.OP_DIV:
+            case Code.OP_REM:
+            case Code.OP_SHL:
+            case Code.OP_SHR:
+            case Code.OP_ALOAD:
+            case Code.OP_BALOAD:
+            case Code.OP_JEQ:
+            case Code.OP_JNE:
+            case Code.OP_JLT:
+            case Code.OP_JLE:
+            case Code.OP_JGT:
+            case Code.OP_JGE:
+            case Code.OP_PRINT:
+            case Code.OP_BPRINT:
+                return 2;
+            case Code.OP_ASTORE:
+            case Code.OP_BASTORE:
+                return 3;
+            case Code.OP_CALL:
+                return method.parameters;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Number of values pushed on the expression stack by the instruction
+     */
+    public int pushes() {
+        switch (opcode) {
+            case Code.OP_LOAD:
+            case Code.OP_GETSTATIC:
+            case Code.OP_GETFIELD:
+            case Code.OP_CONST:
+            case Code.OP_ADD:
+            case Code.OP_SUB:
+            case Code.OP_MUL:
+            case Code.OP_DIV:
+            case Code.OP_REM:
+            case Code.OP_NEG:
+            case Code.OP_SHL:
+            case Code.OP_SHR:
+            case Code.OP_NEW:
+            case Code.OP_NEWARRAY:
+            case Code.OP_ALOAD:
+            case Code.OP_BALOAD:
+            case Code.OP_ARRAYLENGTH:
+            case Code.OP_READ:
+            case Code.OP_BREAD:
+                return 1;
+            case Code.OP_CALL:
+                return method.results;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Checks whether the instruction is a jump, conditional or not
+     */
+    public boolean isJump() {
+        return opcode >= Code.OP_JMP && opcode <= Code.OP_JGE;
+    }
+
+    /**
+     * Checks whether the instruction is a conditional jump
+     */
+    public boolean isConditionalJump() {
+        return opcode >= Code.OP_JEQ && opcode <= Code.OP_JGE;
+    }
+
+    /**
+     * Checks whether the execution may continue with the following
+     * instruction
+     */
+    public boolean fallsThrough() {
+        return opcode != Code.OP_JMP
+                && opcode != Code.OP_RETURN
+                && opcode != Code.OP_TRAP;
+    }
+
+}
@@ -0,0 +1,675 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.codegen.Code;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves computations out of loops.
+ *
+ * Loops are found from their back edges: a jump to a block which dominates
+ * the jumping block. Loops are optimized from the innermost one. A
+ * preheader block is inserted before the loop header, and all the edges
+ * entering the loop from outside go through it.
+ *
+ * Expressions whose value doesn't change in the loop are computed once in
+ * the preheader and stored in a new local, which the loop loads instead.
+ * An expression is invariant if all the locals it loads aren't stored in
+ * the loop, and the statics, fields or array elements it loads aren't
+ * stored in the loop either. Memory loads are never invariant when the
+ * loop contains calls. Expressions which may trap (null object, index out
+ * of bounds, division by zero) are only moved from the loop header, which
+ * is executed at least once, and before any side effect of the header.
+ *
+ * Induction variables, locals only modified by adding a constant once per
+ * iteration, are then used to replace multiplications by a constant: a new
+ * local holds the product, and is updated by an addition next to the
+ * induction variable. This is only done when it saves instructions.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class LoopOptimizer {
+
+    /**
+     * Maximum number of locals of a method, new locals aren't created past
+     * this limit
+     */
+    private static final int MAX_LOCALS = 127;
+
+    /**
+     * Instructions saved by replacing one multiplication, and instructions
+     * needed to update the product
+     */
+    private static final int MULTIPLICATION_COST = 2;
+
+    private static final int UPDATE_COST = 4;
+
+    private Program program;
+
+    public LoopOptimizer(Program program) {
+        this.program = program;
+    }
+
+    public void optimize() {
+        for (Method method : program.methods) {
+            optimize(method);
+        }
+    }
+
+    private void optimize(Method method) {
+        Set<Block> done = new HashSet<Block>();
+        while (true) {
+            // Inserting preheaders changes the graph, loops are searched
+            // again after each transformation
+            Map<Block, Set<Block>> loops = findLoops(method);
+            Block header = null;
+            for (Block candidate : method.blocks) {
+                if (loops.containsKey(candidate)
+                        && !done.contains(candidate) && (header == null
+                        || loops.get(candidate).size()
+                        < loops.get(header).size())) {
+                    header = candidate;
+                }
+            }
+            if (header == null) {
+                return;
+            }
+            done.add(header);
+            optimize(method, header, loops.get(header));
+        }
+    }
+
+    /**
+     * Finds the natural loops of a method
+     * @return the blocks of each loop, indexed by loop header
+     */
+    private Map<Block, Set<Block>> findLoops(Method method) {
+        List<Block> blocks = method.blocks;
+        Map<Block, Integer> indexes = new HashMap<Block, Integer>();
+        Map<Block, List<Block>> predecessors =
+                new HashMap<Block, List<Block>>();
+        for (int i = 0; i < blocks.size(); i++) {
+            indexes.put(blocks.get(i), i);
+            predecessors.put(blocks.get(i), new ArrayList<Block>());
+        }
+
+        // Only reachable blocks are considered
+        Set<Block> reachable = new HashSet<Block>();
+        LinkedList<Block> work = new LinkedList<Block>();
+        work.add(blocks.get(0));
+        reachable.add(blocks.get(0));
+        while (!work.isEmpty()) {
+            Block block = work.removeFirst();
+            for (Block successor : block.successors()) {
+                predecessors.get(successor).add(block);
+                if (reachable.add(successor)) {
+                    work.add(successor);
+                }
+            }
+        }
+
+        // Dominators: a block is dominated by the blocks dominating all
+        // of its predecessors
+        BitSet[] dominators = new BitSet[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            dominators[i] = new BitSet();
+            if (i == 0) {
+                dominators[i].set(0);
+            } else {
+                dominators[i].set(0, blocks.size());
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                if (!reachable.contains(block)) {
+                    continue;
+                }
+                BitSet dominated = new BitSet();
+                dominated.set(0, blocks.size());
+                for (Block predecessor : predecessors.get(block)) {
+                    dominated.and(dominators[indexes.get(predecessor)]);
+                }
+                dominated.set(i);
+                if (!dominated.equals(dominators[i])) {
+                    dominators[i] = dominated;
+                    changed = true;
+                }
+            }
+        }
+
+        Map<Block, Set<Block>> loops = new HashMap<Block, Set<Block>>();
+        for (Block block : blocks) {
+            if (!reachable.contains(block)) {
+                continue;
+            }
+            for (Block successor : block.successors()) {
+                if (!dominators[indexes.get(block)].get(
+                        indexes.get(successor))) {
+                    continue;
+                }
+                Set<Block> loop = loops.get(successor);
+                if (loop == null) {
+                    loop = new HashSet<Block>();
+                    loop.add(successor);
+                    loops.put(successor, loop);
+                }
+                // The loop contains the blocks reaching the back edge
+                // without going through the header
+                if (loop.add(block)) {
+                    work.add(block);
+                }
+                while (!work.isEmpty()) {
+                    for (Block predecessor
+                            : predecessors.get(work.removeFirst())) {
+                        if (loop.add(predecessor)) {
+                            work.add(predecessor);
+                        }
+                    }
+                }
+            }
+        }
+        return loops;
+    }
+
+    private void optimize(Method method, Block header, Set<Block> loop) {
+        Set<Integer> locals = new HashSet<Integer>();
+        Set<Integer> statics = new HashSet<Integer>();
+        Set<Integer> fields = new HashSet<Integer>();
+        boolean arrays = false;
+        boolean calls = false;
+        for (Block block : method.blocks) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            for (Instruction instruction : block.instructions) {
+                switch (instruction.opcode) {
+                    case Code.OP_STORE:
+                        locals.add(instruction.operand);
+                        break;
+                    case Code.OP_PUTSTATIC:
+                        statics.add(instruction.operand);
+                        break;
+                    case Code.OP_PUTFIELD:
+                        fields.add(instruction.operand);
+                        break;
+                    case Code.OP_ASTORE:
+                    case Code.OP_BASTORE:
+                        arrays = true;
+                        break;
+                    case Code.OP_CALL:
+                        calls = true;
+                        break;
+                }
+            }
+        }
+
+        // The header comes first: expressions moved from it are computed
+        // before the other blocks of each iteration. Where these blocks
+        // compute them again, they can't trap and are replaced by the
+        // new local before looking for larger invariant expressions.
+        List<Block> blocks = new ArrayList<Block>();
+        blocks.add(header);
+        for (Block block : method.blocks) {
+            if (loop.contains(block) && block != header) {
+                blocks.add(block);
+            }
+        }
+
+        Block preheader = null;
+        Map<String, Integer> temporaries = new HashMap<String, Integer>();
+        Map<String, Integer> lengths = new HashMap<String, Integer>();
+        for (Block block : blocks) {
+            if (block != header) {
+                reuse(block, temporaries, lengths);
+            }
+            List<Tree> trees = invariants(block, block == header, locals,
+                    statics, fields, arrays, calls);
+            // Trees are replaced from the end, so that the start of the
+            // remaining ones doesn't move
+            for (int i = trees.size() - 1; i >= 0; i--) {
+                if (preheader == null) {
+                    if (method.locals >= MAX_LOCALS) {
+                        return;
+                    }
+                    preheader = insertPreheader(method, header, loop);
+                }
+                Tree tree = trees.get(i);
+                List<Instruction> code =
+                        block.instructions.subList(tree.start, tree.end + 1);
+                String key = key(code);
+                Integer temporary = temporaries.get(key);
+                if (temporary == null) {
+                    if (method.locals >= MAX_LOCALS) {
+                        continue;
+                    }
+                    temporary = method.locals++;
+                    temporaries.put(key, temporary);
+                    lengths.put(key, code.size());
+                    for (Instruction instruction : code) {
+                        preheader.instructions.add(copy(instruction,
+                                instruction.opcode, instruction.operand));
+                    }
+                    preheader.instructions.add(copy(code.get(0),
+                            Code.OP_STORE, temporary));
+                }
+                Instruction load = copy(code.get(0), Code.OP_LOAD, temporary);
+                code.clear();
+                block.instructions.add(tree.start, load);
+            }
+        }
+
+        reduceInductionVariables(method, header, loop, preheader);
+    }
+
+    /**
+     * Replaces the expressions already moved to the preheader by loads of
+     * the locals holding their value
+     * @param temporaries local holding each expression, indexed by key
+     * @param lengths instruction count of each expression, indexed by key
+     */
+    private void reuse(Block block, Map<String, Integer> temporaries,
+            Map<String, Integer> lengths) {
+        List<Instruction> instructions = block.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            for (String key : temporaries.keySet()) {
+                int end = i + lengths.get(key);
+                if (end > instructions.size()) {
+                    continue;
+                }
+                List<Instruction> code = instructions.subList(i, end);
+                if (key.equals(key(code))) {
+                    Instruction load = copy(code.get(0), Code.OP_LOAD,
+                            temporaries.get(key));
+                    code.clear();
+                    instructions.add(i, load);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the maximal invariant expressions of a block worth moving
+     * @param header whether the block is the loop header
+     * @return the expressions, in code order
+     */
+    private List<Tree> invariants(Block block, boolean header,
+            Set<Integer> locals, Set<Integer> statics, Set<Integer> fields,
+            boolean arrays, boolean calls) {
+        List<Tree> invariants = new ArrayList<Tree>();
+        List<Tree> stack = new ArrayList<Tree>();
+        // Whether the instructions so far have no side effect, so that
+        // an expression which may trap can be moved before them
+        boolean pure = header;
+
+        List<Instruction> instructions = block.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            int op = instruction.opcode;
+            int pops = instruction.pops();
+            if (pops > stack.size()) {
+                // Values pushed before entering the block
+                for (int j = stack.size(); j < pops; j++) {
+                    stack.add(0, new Tree(-1, -1, false));
+                }
+            }
+
+            List<Tree> operands = stack.subList(stack.size() - pops,
+                    stack.size());
+            boolean invariant = instruction.pushes() == 1;
+            boolean traps = false;
+            switch (op) {
+                case Code.OP_LOAD:
+                    invariant &= !locals.contains(instruction.operand);
+                    break;
+                case Code.OP_GETSTATIC:
+                    invariant &= !calls
+                            && !statics.contains(instruction.operand);
+                    break;
+                case Code.OP_GETFIELD:
+                    invariant &= !calls
+                            && !fields.contains(instruction.operand);
+                    traps = true;
+                    break;
+                case Code.OP_ALOAD:
+                case Code.OP_BALOAD:
+                    invariant &= !calls && !arrays;
+                    traps = true;
+                    break;
+                case Code.OP_ARRAYLENGTH:
+                case Code.OP_DIV:
+                case Code.OP_REM:
+                    traps = true;
+                    break;
+                case Code.OP_CONST:
+                case Code.OP_ADD:
+                case Code.OP_SUB:
+                case Code.OP_MUL:
+                case Code.OP_NEG:
+                case Code.OP_SHL:
+                case Code.OP_SHR:
+                    break;
+                default:
+                    invariant = false;
+                    break;
+            }
+
+            // Operands must be the instructions right before this one
+            int start = i;
+            for (int j = operands.size() - 1; j >= 0; j--) {
+                Tree operand = operands.get(j);
+                invariant &= operand.invariant && operand.end == start - 1;
+                start = operand.start;
+                traps |= operand.traps;
+            }
+
+            if (!invariant) {
+                for (Tree operand : operands) {
+                    if (worthMoving(operand)) {
+                        invariants.add(operand);
+                    }
+                }
+            }
+            Tree tree = new Tree(start, i, invariant);
+            tree.traps = traps;
+            tree.pure = pure;
+            operands.clear();
+            for (int j = 0; j < instruction.pushes(); j++) {
+                stack.add(tree);
+            }
+
+            pure &= !hasSideEffect(op);
+        }
+
+        for (Tree tree : stack) {
+            if (worthMoving(tree)) {
+                invariants.add(tree);
+            }
+        }
+
+        // Trees are found when used, sort them by position
+        List<Tree> sorted = new ArrayList<Tree>();
+        for (Tree tree : invariants) {
+            int i = 0;
+            while (i < sorted.size() && sorted.get(i).start < tree.start) {
+                i++;
+            }
+            sorted.add(i, tree);
+        }
+        return sorted;
+    }
+
+    /**
+     * Checks whether an expression can be moved to the preheader, and
+     * whether this saves instructions in the loop: a single instruction
+     * would be replaced by a load, which isn't faster
+     */
+    private boolean worthMoving(Tree tree) {
+        return tree.invariant && tree.end > tree.start
+                && (!tree.traps || tree.pure);
+    }
+
+    private boolean hasSideEffect(int op) {
+        switch (op) {
+            case Code.OP_PUTSTATIC:
+            case Code.OP_PUTFIELD:
+            case Code.OP_ASTORE:
+            case Code.OP_BASTORE:
+            case Code.OP_CALL:
+            case Code.OP_READ:
+            case Code.OP_BREAD:
+            case Code.OP_PRINT:
+            case Code.OP_BPRINT:
+            case Code.OP_NEW:
+            case Code.OP_NEWARRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Replaces multiplications of induction variables by a constant
+     * @param preheader the loop preheader, or null if not inserted yet
+     */
+    private void reduceInductionVariables(Method method, Block header,
+            Set<Block> loop, Block preheader) {
+        // Stores of each local in the loop
+        Map<Integer, Instruction> stores = new HashMap<Integer, Instruction>();
+        Map<Integer, Block> storeBlocks = new HashMap<Integer, Block>();
+        Set<Integer> stored = new HashSet<Integer>();
+        for (Block block : method.blocks) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            for (Instruction instruction : block.instructions) {
+                if (instruction.opcode == Code.OP_STORE
+                        && !stored.add(instruction.operand)) {
+                    stores.remove(instruction.operand);
+                } else if (instruction.opcode == Code.OP_STORE) {
+                    stores.put(instruction.operand, instruction);
+                    storeBlocks.put(instruction.operand, block);
+                }
+            }
+        }
+
+        for (Integer local : stores.keySet()) {
+            Block block = storeBlocks.get(local);
+            List<Instruction> instructions = block.instructions;
+            int index = instructions.indexOf(stores.get(local));
+            int step = step(instructions, index, local);
+            if (step == 0) {
+                continue;
+            }
+
+            // Multiplications of the variable, grouped by factor
+            Map<Integer, List<Instruction>> uses =
+                    new HashMap<Integer, List<Instruction>>();
+            for (Block user : method.blocks) {
+                if (!loop.contains(user)) {
+                    continue;
+                }
+                List<Instruction> code = user.instructions;
+                for (int i = 2; i < code.size(); i++) {
+                    Integer factor = factor(code, i, local);
+                    if (factor != null) {
+                        if (!uses.containsKey(factor)) {
+                            uses.put(factor, new ArrayList<Instruction>());
+                        }
+                        uses.get(factor).add(code.get(i));
+                    }
+                }
+            }
+
+            for (Integer factor : uses.keySet()) {
+                List<Instruction> multiplications = uses.get(factor);
+                if (multiplications.size() * MULTIPLICATION_COST
+                        <= UPDATE_COST || method.locals >= MAX_LOCALS) {
+                    continue;
+                }
+                if (preheader == null) {
+                    preheader = insertPreheader(method, header, loop);
+                }
+                int product = method.locals++;
+                Instruction store = stores.get(local);
+
+                // product = local * factor before the loop
+                preheader.instructions.add(copy(store, Code.OP_LOAD, local));
+                preheader.instructions.add(copy(store, Code.OP_CONST, factor));
+                preheader.instructions.add(copy(store, Code.OP_MUL, 0));
+                preheader.instructions.add(copy(store, Code.OP_STORE,
+                        product));
+
+                // product += factor * step next to local += step
+                int at = instructions.indexOf(store) + 1;
+                instructions.add(at, copy(store, Code.OP_STORE, product));
+                instructions.add(at, copy(store, Code.OP_ADD, 0));
+                instructions.add(at, copy(store, Code.OP_CONST,
+                        factor * step));
+                instructions.add(at, copy(store, Code.OP_LOAD, product));
+
+                for (Block user : method.blocks) {
+                    if (!loop.contains(user)) {
+                        continue;
+                    }
+                    List<Instruction> code = user.instructions;
+                    for (int i = code.size() - 1; i >= 2; i--) {
+                        if (multiplications.contains(code.get(i))) {
+                            Instruction load = copy(code.get(i - 2),
+                                    Code.OP_LOAD, product);
+                            code.subList(i - 2, i + 1).clear();
+                            code.add(i - 2, load);
+                            i -= 2;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the store at the given index adds a constant to the
+     * stored local
+     * @return the constant added, or 0 if the store isn't an increment
+     */
+    private int step(List<Instruction> code, int index, int local) {
+        if (index < 3) {
+            return 0;
+        }
+        Instruction load = code.get(index - 3);
+        Instruction constant = code.get(index - 2);
+        Instruction operation = code.get(index - 1);
+        if (load.opcode != Code.OP_LOAD || load.operand != local
+                || constant.opcode != Code.OP_CONST) {
+            return 0;
+        }
+        if (operation.opcode == Code.OP_ADD) {
+            return constant.operand;
+        } else if (operation.opcode == Code.OP_SUB) {
+            return -constant.operand;
+        }
+        return 0;
+    }
+
+    /**
+     * Checks whether the instruction at the given index multiplies a
+     * local by a constant
+     * @return the constant, or null if it doesn't
+     */
+    private Integer factor(List<Instruction> code, int index, int local) {
+        Instruction first = code.get(index - 2);
+        Instruction second = code.get(index - 1);
+        Instruction operation = code.get(index);
+        if (operation.opcode == Code.OP_MUL) {
+            if (first.opcode == Code.OP_LOAD && first.operand == local
+                    && second.opcode == Code.OP_CONST) {
+                return second.operand;
+            }
+            if (second.opcode == Code.OP_LOAD && second.operand == local
+                    && first.opcode == Code.OP_CONST) {
+                return first.operand;
+            }
+        } else if (operation.opcode == Code.OP_SHL
+                && first.opcode == Code.OP_LOAD && first.operand == local
+                && second.opcode == Code.OP_CONST
+                && second.operand >= 0 && second.operand < 31) {
+            return 1 << second.operand;
+        }
+        return null;
+    }
+
+    /**
+     * Inserts an empty block before the loop header, and makes all edges
+     * entering the loop go through it
+     * @return the new block
+     */
+    private Block insertPreheader(Method method, Block header,
+            Set<Block> loop) {
+        Block preheader = new Block();
+        preheader.next = header;
+        for (Block block : method.blocks) {
+            if (loop.contains(block)) {
+                continue;
+            }
+            Instruction last = block.last();
+            if (last != null && last.isJump() && last.target == header) {
+                last.target = preheader;
+            }
+            if (block.next == header) {
+                block.next = preheader;
+            }
+        }
+        method.blocks.add(method.blocks.indexOf(header), preheader);
+        return preheader;
+    }
+
+    /**
+     * Builds a key identifying an instruction sequence, so that identical
+     * expressions share the same local
+     */
+    private String key(List<Instruction> code) {
+        StringBuilder key = new StringBuilder();
+        for (Instruction instruction : code) {
+            key.append(instruction.opcode).append(':')
+                    .append(instruction.operand).append(' ');
+        }
+        return key.toString();
+    }
+
+    private Instruction copy(Instruction instruction, int opcode,
+            int operand) {
+        Instruction copy = new Instruction(opcode, operand);
+        copy.line = instruction.line;
+        return copy;
+    }
+
+    /**
+     * Expression computed by consecutive instructions of a block
+     */
+    private static class Tree {
+
+        /**
+         * Index of the first and last instructions, -1 for values
+         * pushed before the block
+         */
+        int start;
+
+        int end;
+
+        boolean invariant;
+
+        /**
+         * Whether the expression may trap
+         */
+        boolean traps;
+
+        /**
+         * Whether the expression is in the loop header, with no side
+         * effect before it
+         */
+        boolean pure;
+
+        Tree(int start, int end, boolean invariant) {
+            this.start = start;
+            this.end = end;
+            this.invariant = invariant;
+        }
+
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.DebugInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates code from the intermediate representation.
+ *
+ * Blocks are laid out in order. A jump is added when a block doesn't fall
+ * through to the following one, and jumps to the following block are
+ * dropped. Loads, stores and constants use their short form when one
+ * exists.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Lowering {
+
+    private Program program;
+
+    private Code code = new Code();
+
+    /**
+     * Blocks addresses in the generated code
+     */
+    private Map<Block, Integer> addresses = new HashMap<Block, Integer>();
+
+    /**
+     * Jump operands to fix once all blocks are placed, and their target
+     */
+    private List<Integer> jumps = new ArrayList<Integer>();
+
+    private List<Block> jumpTargets = new ArrayList<Block>();
+
+    /**
+     * Call operands to fix once all methods are placed, and their target
+     */
+    private List<Integer> calls = new ArrayList<Integer>();
+
+    private List<Method> callTargets = new ArrayList<Method>();
+
+    /**
+     * @param program the program to generate code for
+     * @param debug whether debug informations have to be generated
+     */
+    public Lowering(Program program, boolean debug) {
+        this.program = program;
+        if (debug) {
+            code.debug = new DebugInfo();
+        }
+    }
+
+    public Code lower() {
+        code.dataSize = program.dataSize;
+
+        for (Method method : program.methods) {
+            lower(method);
+        }
+
+        for (int i = 0; i < jumps.size(); i++) {
+            code.put2(jumps.get(i), addresses.get(jumpTargets.get(i)));
+        }
+        for (int i = 0; i < calls.size(); i++) {
+            code.put2(calls.get(i), callTargets.get(i).address);
+        }
+        code.mainPc = program.main.address;
+
+        return code;
+    }
+
+    private void lower(Method method) {
+        method.address = code.pc;
+        if (method.name != null) {
+            code.method(method.name);
+        }
+        code.put(Code.OP_ENTER);
+        code.put(method.parameters);
+        code.put(method.locals);
+
+        List<Block> blocks = method.blocks;
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            Block following = null;
+            if (i + 1 < blocks.size()) {
+                following = blocks.get(i + 1);
+            }
+
+            addresses.put(block, code.pc);
+            for (Instruction instruction : block.instructions) {
+                if (instruction.opcode == Code.OP_JMP
+                        && instruction.target == following) {
+                    continue;
+                }
+                if (instruction.line != 0) {
+                    code.line(instruction.line);
+                }
+                lower(instruction);
+            }
+
+            Instruction last = block.last();
+            if (block.next != null && block.next != following
+                    && (last == null || last.fallsThrough())) {
+                jump(Code.OP_JMP, block.next);
+            }
+        }
+    }
+
+    private void lower(Instruction instruction) {
+        int op = instruction.opcode;
+        int operand = instruction.operand;
+        switch (op) {
+            case Code.OP_LOAD:
+                if (operand <= 3) {
+                    code.put(Code.OP_LOAD0 + operand);
+                } else {
+                    code.put(op);
+                    code.put(operand);
+                }
+                break;
+            case Code.OP_STORE:
+                if (operand <= 3) {
+                    code.put(Code.OP_STORE0 + operand);
+                } else {
+                    code.put(op);
+                    code.put(operand);
+                }
+                break;
+            case Code.OP_CONST:
+                if (operand >= 0 && operand <= 5) {
+                    code.put(Code.OP_CONST0 + operand);
+                } else if (operand == -1) {
+                    code.put(Code.OP_CONSTM1);
+                } else {
+                    code.put(op);
+                    code.put4(operand);
+                }
+                break;
+            case Code.OP_JMP:
+            case Code.OP_JEQ:
+            case Code.OP_JNE:
+            case Code.OP_JLT:
+            case Code.OP_JLE:
+            case Code.OP_JGT:
+            case Code.OP_JGE:
+                jump(op, instruction.target);
+                break;
+            case Code.OP_CALL:
+                code.put(op);
+                code.put2(42); // Fixed once all methods are placed
+                calls.add(code.pc - 2);
+                callTargets.add(instruction.method);
+                break;
+            case Code.OP_NEWARRAY:
+            case Code.OP_TRAP:
+                code.put(op);
+                code.put(operand);
+                break;
+            default:
+                code.put(op);
+                if (Code.instructionSize(op) == 3) {
+                    code.put2(operand);
+                }
+                break;
+        }
+    }
+
+    private void jump(int op, Block target) {
+        code.put(op);
+        code.put2(42); // Fixed once all blocks are placed
+        jumps.add(code.pc - 2);
+        jumpTargets.add(target);
+    }
+
+}
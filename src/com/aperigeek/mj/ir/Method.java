@@ -0,0 +1,49 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Method of the intermediate representation: its frame and its basic
+ * blocks, the first one being the entry point.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Method {
+
+    /**
+     * Method name, or null if unknown
+     */
+    public String name;
+
+    public int parameters;
+
+    /**
+     * Number of local variables, parameters included
+     */
+    public int locals;
+
+    /**
+     * Number of values left on the expression stack when returning:
+     * 1 for functions, 0 for void methods
+     */
+    public int results;
+
+    /**
+     * Basic blocks, in code order
+     */
+    public List<Block> blocks = new ArrayList<Block>();
+
+    /**
+     * Address of the method in the code it was built from, then in the
+     * lowered code
+     */
+    public int address;
+
+}
@@ -0,0 +1,561 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.codegen.Code;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimizes the intermediate representation of each method.
+ *
+ * Constants are propagated through local variables and the expression
+ * stack, only following the edges that may be executed: a conditional
+ * jump whose operands are constant only leads to one of its successors.
+ * Each local variable and stack slot is either a known constant, or
+ * unknown. Values coming from memory, calls and input are unknown, as are
+ * parameters and locals on method entry.
+ *
+ * The results are then used to rewrite each block: loads of constant
+ * locals become constants, operations on constants are folded, and
+ * conditional jumps on constants are replaced by unconditional jumps or
+ * removed. Blocks that can't be reached are removed. Within a block, a
+ * local which holds a copy of another one is loaded from the original
+ * local. Finally, stores to locals that are never read afterwards are
+ * removed, along with the computation of the stored value when it has no
+ * side effect.
+ *
+ * These steps are repeated until the method doesn't change anymore.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Optimizer {
+
+    /**
+     * Maximum number of times the steps are repeated on a method
+     */
+    private static final int MAX_PASSES = 16;
+
+    private Program program;
+
+    public Optimizer(Program program) {
+        this.program = program;
+    }
+
+    public void optimize() {
+        for (Method method : program.methods) {
+            optimize(method);
+        }
+    }
+
+    private void optimize(Method method) {
+        boolean changed = true;
+        for (int pass = 0; changed && pass < MAX_PASSES; pass++) {
+            changed = false;
+            Map<Block, State> states = propagate(method);
+            for (Block block : method.blocks) {
+                State state = states.get(block);
+                if (state != null) {
+                    changed |= rewrite(block, state);
+                }
+            }
+            changed |= removeUnreachable(method, states);
+            changed |= removeDeadStores(method);
+        }
+    }
+
+    /**
+     * Computes the values of locals and stack slots at the entry of each
+     * block that may be executed
+     * @return the state on entry of each reachable block
+     */
+    private Map<Block, State> propagate(Method method) {
+        Map<Block, State> states = new HashMap<Block, State>();
+        LinkedList<Block> work = new LinkedList<Block>();
+
+        Block entry = method.blocks.get(0);
+        states.put(entry, new State(method.locals));
+        work.add(entry);
+
+        while (!work.isEmpty()) {
+            Block block = work.removeFirst();
+            State state = states.get(block).copy();
+            Instruction last = block.last();
+
+            for (Instruction instruction : block.instructions) {
+                if (instruction != last || !last.isConditionalJump()) {
+                    transfer(state, instruction);
+                }
+            }
+
+            if (last != null && last.isConditionalJump()) {
+                Integer b = state.pop();
+                Integer a = state.pop();
+                if (a != null && b != null) {
+                    if (compare(last.opcode, a, b)) {
+                        flow(states, work, last.target, state);
+                    } else {
+                        flow(states, work, block.next, state);
+                    }
+                } else {
+                    flow(states, work, last.target, state);
+                    flow(states, work, block.next, state);
+                }
+            } else {
+                for (Block successor : block.successors()) {
+                    flow(states, work, successor, state);
+                }
+            }
+        }
+
+        return states;
+    }
+
+    private void flow(Map<Block, State> states, LinkedList<Block> work,
+            Block target, State state) {
+        if (target == null) {
+            return;
+        }
+        State current = states.get(target);
+        if (current == null) {
+            states.put(target, state.copy());
+            work.add(target);
+        } else if (current.merge(state) && !work.contains(target)) {
+            work.add(target);
+        }
+    }
+
+    /**
+     * Applies the effect of an instruction to the state
+     */
+    private void transfer(State state, Instruction instruction) {
+        switch (instruction.opcode) {
+            case Code.OP_LOAD:
+                state.push(state.locals[instruction.operand]);
+                break;
+            case Code.OP_STORE:
+                state.locals[instruction.operand] = state.pop();
+                break;
+            case Code.OP_CONST:
+                state.push(instruction.operand);
+                break;
+            case Code.OP_ADD:
+            case Code.OP_SUB:
+            case Code.OP_MUL:
+            case Code.OP_DIV:
+            case Code.OP_REM:
+            case Code.OP_SHL:
+            case Code.OP_SHR: {
+                Integer b = state.pop();
+                Integer a = state.pop();
+                state.push(fold(instruction.opcode, a, b));
+                break;
+            }
+            case Code.OP_NEG: {
+                Integer a = state.pop();
+                state.push(a == null ? null : Integer.valueOf(-a));
+                break;
+            }
+            default:
+                for (int i = 0; i < instruction.pops(); i++) {
+                    state.pop();
+                }
+                for (int i = 0; i < instruction.pushes(); i++) {
+                    state.push(null);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Rewrites a block using the values known on its entry
+     * @return true if the block has been modified
+     */
+    private boolean rewrite(Block block, State in) {
+        State state = in.copy();
+        Instruction[] instructions = block.instructions.toArray(
+                new Instruction[block.instructions.size()]);
+        List<Instruction> tail = new ArrayList<Instruction>();
+        boolean changed = false;
+
+        // Index of the instruction which pushed each stack slot, -1 when
+        // pushed before entering the block
+        List<Integer> producers = new ArrayList<Integer>();
+        for (int i = 0; i < state.stack.size(); i++) {
+            producers.add(-1);
+        }
+
+        // Local each local is a copy of, -1 when unknown
+        int[] copies = new int[state.locals.length];
+        Arrays.fill(copies, -1);
+
+        for (int i = 0; i < instructions.length; i++) {
+            Instruction instruction = instructions[i];
+            int op = instruction.opcode;
+            switch (op) {
+                case Code.OP_LOAD: {
+                    int local = instruction.operand;
+                    Integer value = state.locals[local];
+                    if (value != null) {
+                        instructions[i] = copy(instruction, Code.OP_CONST,
+                                value);
+                        changed = true;
+                    } else if (copies[local] != -1) {
+                        instructions[i] = copy(instruction, Code.OP_LOAD,
+                                copies[local]);
+                        changed = true;
+                    }
+                    state.push(value);
+                    producers.add(i);
+                    break;
+                }
+                case Code.OP_STORE: {
+                    int local = instruction.operand;
+                    int producer = producers.remove(producers.size() - 1);
+                    state.locals[local] = state.pop();
+                    for (int j = 0; j < copies.length; j++) {
+                        if (copies[j] == local) {
+                            copies[j] = -1;
+                        }
+                    }
+                    copies[local] = -1;
+                    if (producer != -1
+                            && instructions[producer].opcode == Code.OP_LOAD
+                            && instructions[producer].operand != local) {
+                        copies[local] = instructions[producer].operand;
+                    }
+                    break;
+                }
+                case Code.OP_ADD:
+                case Code.OP_SUB:
+                case Code.OP_MUL:
+                case Code.OP_DIV:
+                case Code.OP_REM:
+                case Code.OP_SHL:
+                case Code.OP_SHR: {
+                    int pb = producers.remove(producers.size() - 1);
+                    int pa = producers.remove(producers.size() - 1);
+                    Integer b = state.pop();
+                    Integer a = state.pop();
+                    Integer result = fold(op, a, b);
+                    if (result != null && removable(instructions, pa)
+                            && removable(instructions, pb)) {
+                        instructions[pa] = null;
+                        instructions[pb] = null;
+                        instructions[i] = copy(instruction, Code.OP_CONST,
+                                result);
+                        changed = true;
+                    }
+                    state.push(result);
+                    producers.add(i);
+                    break;
+                }
+                case Code.OP_NEG: {
+                    int pa = producers.remove(producers.size() - 1);
+                    Integer a = state.pop();
+                    Integer result = a == null ? null : Integer.valueOf(-a);
+                    if (result != null && removable(instructions, pa)) {
+                        instructions[pa] = null;
+                        instructions[i] = copy(instruction, Code.OP_CONST,
+                                result);
+                        changed = true;
+                    }
+                    state.push(result);
+                    producers.add(i);
+                    break;
+                }
+                case Code.OP_POP: {
+                    int pa = producers.remove(producers.size() - 1);
+                    state.pop();
+                    if (removable(instructions, pa)) {
+                        instructions[pa] = null;
+                        instructions[i] = null;
+                        changed = true;
+                    }
+                    break;
+                }
+                case Code.OP_JEQ:
+                case Code.OP_JNE:
+                case Code.OP_JLT:
+                case Code.OP_JLE:
+                case Code.OP_JGT:
+                case Code.OP_JGE: {
+                    int pb = producers.remove(producers.size() - 1);
+                    int pa = producers.remove(producers.size() - 1);
+                    Integer b = state.pop();
+                    Integer a = state.pop();
+                    if (a == null || b == null) {
+                        break;
+                    }
+                    // Operands pushed by this block are removed, the others
+                    // have to be popped
+                    int[] operands = {pb, pa};
+                    for (int producer : operands) {
+                        if (removable(instructions, producer)) {
+                            instructions[producer] = null;
+                        } else {
+                            tail.add(copy(instruction, Code.OP_POP, 0));
+                        }
+                    }
+                    if (compare(op, a, b)) {
+                        Instruction jump = copy(instruction, Code.OP_JMP, 0);
+                        jump.target = instruction.target;
+                        tail.add(jump);
+                    }
+                    instructions[i] = null;
+                    changed = true;
+                    break;
+                }
+                default:
+                    transfer(state, instruction);
+                    for (int j = 0; j < instruction.pops(); j++) {
+                        producers.remove(producers.size() - 1);
+                    }
+                    for (int j = 0; j < instruction.pushes(); j++) {
+                        producers.add(i);
+                    }
+                    break;
+            }
+        }
+
+        if (changed) {
+            block.instructions.clear();
+            for (Instruction instruction : instructions) {
+                if (instruction != null) {
+                    block.instructions.add(instruction);
+                }
+            }
+            block.instructions.addAll(tail);
+        }
+        return changed;
+    }
+
+    /**
+     * Checks whether the instruction at the given index pushes a value
+     * without any side effect, so that it can be removed along with the
+     * instruction using the value
+     */
+    private boolean removable(Instruction[] instructions, int index) {
+        if (index == -1 || instructions[index] == null) {
+            return false;
+        }
+        int op = instructions[index].opcode;
+        return op == Code.OP_CONST || op == Code.OP_LOAD
+                || op == Code.OP_GETSTATIC;
+    }
+
+    private Instruction copy(Instruction instruction, int opcode,
+            int operand) {
+        Instruction copy = new Instruction(opcode, operand);
+        copy.line = instruction.line;
+        return copy;
+    }
+
+    /**
+     * Removes the blocks that can't be executed
+     * @param states state on entry of each reachable block
+     * @return true if blocks have been removed
+     */
+    private boolean removeUnreachable(Method method,
+            Map<Block, State> states) {
+        boolean changed = false;
+        Iterator<Block> blocks = method.blocks.iterator();
+        while (blocks.hasNext()) {
+            if (!states.containsKey(blocks.next())) {
+                blocks.remove();
+                changed = true;
+            }
+        }
+        for (Block block : method.blocks) {
+            if (block.next != null && !states.containsKey(block.next)) {
+                block.next = null;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces the stores to locals which aren't read afterwards by pops.
+     * Pops of values without side effects are then removed by rewrite.
+     * @return true if stores have been removed
+     */
+    private boolean removeDeadStores(Method method) {
+        Map<Block, boolean[]> liveIn = new HashMap<Block, boolean[]>();
+        for (Block block : method.blocks) {
+            liveIn.put(block, new boolean[method.locals]);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = method.blocks.size() - 1; i >= 0; i--) {
+                Block block = method.blocks.get(i);
+                boolean[] live = liveOut(block, liveIn, method.locals);
+                for (int j = block.instructions.size() - 1; j >= 0; j--) {
+                    use(block.instructions.get(j), live);
+                }
+                if (!Arrays.equals(live, liveIn.get(block))) {
+                    liveIn.put(block, live);
+                    changed = true;
+                }
+            }
+        }
+
+        boolean removed = false;
+        for (Block block : method.blocks) {
+            boolean[] live = liveOut(block, liveIn, method.locals);
+            List<Instruction> instructions = block.instructions;
+            for (int j = instructions.size() - 1; j >= 0; j--) {
+                Instruction instruction = instructions.get(j);
+                if (instruction.opcode == Code.OP_STORE
+                        && !live[instruction.operand]) {
+                    instructions.set(j, copy(instruction, Code.OP_POP, 0));
+                    removed = true;
+                } else {
+                    use(instruction, live);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private boolean[] liveOut(Block block, Map<Block, boolean[]> liveIn,
+            int locals) {
+        boolean[] live = new boolean[locals];
+        Set<Block> successors = new HashSet<Block>(block.successors());
+        for (Block successor : successors) {
+            boolean[] in = liveIn.get(successor);
+            for (int i = 0; i < locals; i++) {
+                live[i] |= in[i];
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Updates the live locals before an instruction from the live locals
+     * after it
+     */
+    private void use(Instruction instruction, boolean[] live) {
+        if (instruction.opcode == Code.OP_STORE) {
+            live[instruction.operand] = false;
+        } else if (instruction.opcode == Code.OP_LOAD) {
+            live[instruction.operand] = true;
+        }
+    }
+
+    /**
+     * Computes the result of an operation
+     * @return the result, or null if an operand is unknown or the operation
+     * would trap at run time
+     */
+    private Integer fold(int op, Integer a, Integer b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        switch (op) {
+            case Code.OP_ADD:
+                return a + b;
+            case Code.OP_SUB:
+                return a - b;
+            case Code.OP_MUL:
+                return a * b;
+            case Code.OP_DIV:
+                return b == 0 ? null : Integer.valueOf(a / b);
+            case Code.OP_REM:
+                return b == 0 ? null : Integer.valueOf(a % b);
+            case Code.OP_SHL:
+                return a << b;
+            case Code.OP_SHR:
+                return a >> b;
+            default:
+                return null;
+        }
+    }
+
+    private boolean compare(int op, int a, int b) {
+        switch (op) {
+            case Code.OP_JEQ:
+                return a == b;
+            case Code.OP_JNE:
+                return a != b;
+            case Code.OP_JLT:
+                return a < b;
+            case Code.OP_JLE:
+                return a <= b;
+            case Code.OP_JGT:
+                return a > b;
+            default:
+                return a >= b;
+        }
+    }
+
+    /**
+     * Values of the locals and of the expression stack. A null value is
+     * unknown.
+     */
+    private static class State {
+
+        Integer[] locals;
+
+        List<Integer> stack = new ArrayList<Integer>();
+
+        State(int locals) {
+            this.locals = new Integer[locals];
+        }
+
+        State copy() {
+            State copy = new State(locals.length);
+            System.arraycopy(locals, 0, copy.locals, 0, locals.length);
+            copy.stack.addAll(stack);
+            return copy;
+        }
+
+        void push(Integer value) {
+            stack.add(value);
+        }
+
+        Integer pop() {
+            return stack.remove(stack.size() - 1);
+        }
+
+        /**
+         * Merges another state reaching the same block
+         * @return true if this state has changed
+         */
+        boolean merge(State other) {
+            if (other.stack.size() != stack.size()) {
+                throw new IllegalStateException(
+                        "Inconsistent stack depth");
+            }
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (locals[i] != null && !locals[i].equals(other.locals[i])) {
+                    locals[i] = null;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < stack.size(); i++) {
+                Integer value = stack.get(i);
+                if (value != null && !value.equals(other.stack.get(i))) {
+                    stack.set(i, null);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Intermediate representation of a whole program
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Program {
+
+    /**
+     * Methods, in code order
+     */
+    public List<Method> methods = new ArrayList<Method>();
+
+    /**
+     * Main method
+     */
+    public Method main;
+
+    /**
+     * Size of the data memory space
+     */
+    public int dataSize;
+
+}
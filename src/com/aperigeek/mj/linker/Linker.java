@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.linker;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.diagnostics.DiagnosticSink;
+import com.aperigeek.mj.symtab.SymObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Links the units of a program into a single object file.
+ *
+ * Units are placed one after another, in the given order, in the code and
+ * in the data memory. Jumps are then moved by the address of their unit,
+ * static addresses are replaced by the final address of the variable, and
+ * calls get the final address of the called method.
+ *
+ * Declarations imported by a unit must not have changed since the unit
+ * was compiled, otherwise the unit has to be compiled again.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Linker {
+
+    /**
+     * Receives the link errors
+     */
+    public DiagnosticSink diagnostics = new DiagnosticBuffer();
+
+    /**
+     * Errors count
+     */
+    public int errors;
+
+    /**
+     * Final address of the global variables and methods, by name
+     */
+    private Map<String, Integer> globals = new HashMap<String, Integer>();
+
+    private Map<String, Integer> methods = new HashMap<String, Integer>();
+
+    /**
+     * Links units
+     * @param units the units of the program, one of them declaring the
+     * main method
+     * @return the program code, or null if errors were found
+     */
+    public Code link(List<Unit> units) {
+        Map<String, SymObject> declarations =
+                new HashMap<String, SymObject>();
+        Code code = new Code();
+        code.mainPc = -1;
+
+        // Layout
+        int pc = 0;
+        for (Unit unit : units) {
+            for (SymObject object : unit.exports) {
+                SymObject other = declarations.put(object.name, object);
+                if (other != null) {
+                    error(Diagnostic.DECLARED_BY_UNITS, object.name);
+                }
+                if (object.kind == SymObject.KIND_VAR) {
+                    globals.put(object.name, code.dataSize
+                            + object.address - unit.imports.size());
+                } else if (object.kind == SymObject.KIND_METHOD) {
+                    methods.put(object.name, pc + object.address);
+                }
+            }
+            if (unit.code.mainPc >= 0) {
+                if (code.mainPc >= 0) {
+                    error(Diagnostic.DECLARED_BY_UNITS, "main");
+                }
+                code.mainPc = pc + unit.code.mainPc;
+            }
+            pc += unit.code.pc;
+            code.dataSize += unit.variables();
+        }
+        if (code.mainPc < 0) {
+            error(Diagnostic.MAIN_REQUIRED);
+        }
+        for (Unit unit : units) {
+            for (Map.Entry<String, String> signature
+                    : unit.signatures.entrySet()) {
+                // Missing declarations are reported where they're used
+                SymObject object = declarations.get(signature.getKey());
+                if (object != null && !Unit.signature(object)
+                        .equals(signature.getValue())) {
+                    error(Diagnostic.CHANGED_IN_UNITS, object.name);
+                }
+            }
+        }
+        if (errors > 0) {
+            return null;
+        }
+
+        // Relocation
+        int dataBase = 0;
+        for (Unit unit : units) {
+            int base = code.pc;
+            code.append(unit.code);
+            relocate(code, unit, base, dataBase);
+            dataBase += unit.variables();
+        }
+
+        return errors == 0 ? code : null;
+    }
+
+    private void relocate(Code code, Unit unit, int base, int dataBase) {
+        int pos = 0;
+        while (pos < unit.code.pc) {
+            int op = unit.code.get(pos);
+            if (op >= Code.OP_JMP && op <= Code.OP_JGE) {
+                code.put2(base + pos + 1, base + unit.code.get2(pos + 1));
+            } else if (op == Code.OP_GETSTATIC || op == Code.OP_PUTSTATIC) {
+                int address = unit.code.get2(pos + 1);
+                if (address < unit.imports.size()) {
+                    String name = unit.imports.get(address);
+                    Integer global = globals.get(name);
+                    if (global == null) {
+                        error(Diagnostic.UNDECLARED_IN_UNITS, name);
+                    } else {
+                        code.put2(base + pos + 1, global);
+                    }
+                } else {
+                    code.put2(base + pos + 1,
+                            dataBase + address - unit.imports.size());
+                }
+            }
+            pos += Code.instructionSize(op);
+        }
+
+        for (int i = 0; i < unit.callSites.size(); i++) {
+            String name = unit.callees.get(i);
+            Integer method = methods.get(name);
+            if (method == null) {
+                error(Diagnostic.UNDECLARED_IN_UNITS, name);
+            } else {
+                code.put2(base + unit.callSites.get(i), method);
+            }
+        }
+    }
+
+    private void error(int code, Object... arguments) {
+        errors++;
+        diagnostics.report(Diagnostic.ERROR, code, 0, 0, arguments);
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.linker;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.parser.FragmentCache;
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.symtab.Struct;
+import com.aperigeek.mj.symtab.SymObject;
+import com.aperigeek.mj.symtab.SymbolTable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relocatable object file, compiled from one unit of a program
+ *
+ * A unit is compiled as if it was loaded at address 0 of the code and of
+ * the data memory:
+ *  - jumps are relative to the start of the unit code
+ *  - global variables imported from other units get the first static
+ *    addresses, in the order of the imports list. The unit own variables
+ *    come after them.
+ *  - calls are listed with the name of the called method, which can be
+ *    declared in any unit
+ *
+ * The declarations of the unit are exported, so that other units can be
+ * compiled against them. The signature of the declarations imported from
+ * other units is kept, so that the linker can find the units compiled
+ * against declarations which have changed since.
+ *
+ * File layout: "MJU", code size, code, data size, main pc (-1 if the unit
+ * has no main method), imported variables, imported signatures, exported
+ * declarations and calls.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Unit {
+
+    private static final int TYPE_NONE = 0,
+            TYPE_INT = 1,
+            TYPE_CHAR = 2,
+            TYPE_ARRAY = 3,
+            TYPE_CLASS = 4;
+
+    /**
+     * Unit code. Its data size includes the imported variables.
+     */
+    public Code code;
+
+    /**
+     * Names of the imported global variables, by static address
+     */
+    public List<String> imports = new ArrayList<String>();
+
+    /**
+     * Signature of the declarations imported from other units, by name
+     */
+    public Map<String, String> signatures =
+            new LinkedHashMap<String, String>();
+
+    /**
+     * Constants, classes, global variables and methods declared by the
+     * unit
+     */
+    public List<SymObject> exports = new ArrayList<SymObject>();
+
+    /**
+     * Address of the call operands, and name of the called methods
+     */
+    public List<Integer> callSites = new ArrayList<Integer>();
+
+    public List<String> callees = new ArrayList<String>();
+
+    private Unit() {
+    }
+
+    /**
+     * Creates the unit compiled by a parser
+     * @param parser the parser, once the program has been parsed without
+     * errors
+     */
+    public Unit(Parser parser) {
+        code = parser.code;
+        for (SymObject object : parser.imports) {
+            if (object.kind == SymObject.KIND_VAR) {
+                imports.add(object.name);
+            }
+            signatures.put(object.name, signature(object));
+        }
+        exports.addAll(parser.declarations());
+        callSites.addAll(parser.callSites);
+        for (SymObject callee : parser.callees) {
+            callees.add(callee.name);
+        }
+
+        code.mainPc = -1;
+        for (SymObject object : exports) {
+            if (object.kind == SymObject.KIND_METHOD
+                    && object.name.equals("main")) {
+                code.mainPc = object.address;
+            }
+        }
+    }
+
+    /**
+     * Describes what the code compiled against a declaration depends on:
+     * its kind and type, the fields of classes, the value of constants and
+     * the parameters of methods. Addresses are left out, they're set by
+     * the linker.
+     * @param object the declaration
+     */
+    public static String signature(SymObject object) {
+        StringBuilder text = new StringBuilder();
+        text.append(object.kind).append(' ')
+                .append(FragmentCache.describe(object.type));
+        if (object.kind == SymObject.KIND_CON) {
+            text.append(' ').append(object.value);
+        } else if (object.kind == SymObject.KIND_METHOD) {
+            text.append(" (");
+            for (SymObject parameter
+                    : object.locals.subList(0, object.parameters)) {
+                text.append(FragmentCache.describe(parameter.type))
+                        .append(' ');
+            }
+            text.append(')');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Number of global variables declared by the unit
+     */
+    public int variables() {
+        return code.dataSize - imports.size();
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeByte('M');
+            data.writeByte('J');
+            data.writeByte('U');
+            data.writeInt(code.pc);
+            for (int i = 0; i < code.pc; i++) {
+                data.writeByte(code.get(i));
+            }
+            data.writeInt(code.dataSize);
+            data.writeInt(code.mainPc);
+
+            data.writeInt(imports.size());
+            for (String name : imports) {
+                data.writeUTF(name);
+            }
+
+            data.writeInt(signatures.size());
+            for (Map.Entry<String, String> signature
+                    : signatures.entrySet()) {
+                data.writeUTF(signature.getKey());
+                data.writeUTF(signature.getValue());
+            }
+
+            data.writeInt(exports.size());
+            for (SymObject object : exports) {
+                data.writeByte(object.kind);
+                data.writeUTF(object.name);
+                switch (object.kind) {
+                    case SymObject.KIND_CON:
+                        writeType(data, object.type);
+                        data.writeInt(object.value);
+                        break;
+                    case SymObject.KIND_VAR:
+                        writeType(data, object.type);
+                        data.writeInt(object.address);
+                        break;
+                    case SymObject.KIND_TYPE:
+                        writeVariables(data, object.type.fields,
+                                object.type.fields.size());
+                        break;
+                    case SymObject.KIND_METHOD:
+                        writeType(data, object.type);
+                        data.writeInt(object.address);
+                        data.writeInt(object.end);
+                        writeVariables(data, object.locals,
+                                object.parameters);
+                        break;
+                }
+            }
+
+            data.writeInt(callSites.size());
+            for (int i = 0; i < callSites.size(); i++) {
+                data.writeInt(callSites.get(i));
+                data.writeUTF(callees.get(i));
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    private void writeVariables(DataOutputStream data,
+            List<SymObject> variables, int count) throws IOException {
+        data.writeInt(count);
+        for (SymObject variable : variables.subList(0, count)) {
+            data.writeUTF(variable.name);
+            writeType(data, variable.type);
+        }
+    }
+
+    private void writeType(DataOutputStream data, Struct type)
+            throws IOException {
+        if (type == SymbolTable.STRUCT_INT) {
+            data.writeByte(TYPE_INT);
+        } else if (type == SymbolTable.STRUCT_CHAR) {
+            data.writeByte(TYPE_CHAR);
+        } else if (type.kind == Struct.KIND_ARRAY) {
+            data.writeByte(TYPE_ARRAY);
+            writeType(data, type.elementsType);
+        } else if (type.kind == Struct.KIND_CLASS) {
+            data.writeByte(TYPE_CLASS);
+            data.writeUTF(type.name);
+        } else {
+            data.writeByte(TYPE_NONE);
+        }
+    }
+
+    /**
+     * Reads a unit file
+     * @param in stream to read the unit from. The stream is closed once
+     * the unit has been read.
+     * @param classes classes of the program, by name. Classes declared by
+     * the unit are added, classes used by the unit and declared by units
+     * not read yet are added too, and completed once their unit is read.
+     * This keeps a single Struct per class.
+     * @return the unit
+     * @throws IOException if the stream can't be read, or doesn't contain
+     * a valid unit
+     */
+    public static Unit read(InputStream in, Map<String, Struct> classes)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedByte() != 'M'
+                    || data.readUnsignedByte() != 'J'
+                    || data.readUnsignedByte() != 'U') {
+                throw new IOException("Not a MicroJava unit file");
+            }
+
+            Unit unit = new Unit();
+            unit.code = new Code();
+            int codeSize = data.readInt();
+            if (codeSize < 0) {
+                throw new IOException("Invalid code size: " + codeSize);
+            }
+            for (int i = 0; i < codeSize; i++) {
+                unit.code.put(data.readUnsignedByte());
+            }
+            unit.code.dataSize = data.readInt();
+            unit.code.mainPc = data.readInt();
+
+            int imports = data.readInt();
+            for (int i = 0; i < imports; i++) {
+                unit.imports.add(data.readUTF());
+            }
+
+            int signatures = data.readInt();
+            for (int i = 0; i < signatures; i++) {
+                String name = data.readUTF();
+                unit.signatures.put(name, data.readUTF());
+            }
+
+            int exports = data.readInt();
+            for (int i = 0; i < exports; i++) {
+                unit.exports.add(readObject(data, classes));
+            }
+
+            int calls = data.readInt();
+            for (int i = 0; i < calls; i++) {
+                unit.callSites.add(data.readInt());
+                unit.callees.add(data.readUTF());
+            }
+
+            return unit;
+        } finally {
+            data.close();
+        }
+    }
+
+    private static SymObject readObject(DataInputStream data,
+            Map<String, Struct> classes) throws IOException {
+        SymObject object = new SymObject();
+        object.kind = data.readUnsignedByte();
+        object.name = data.readUTF();
+        switch (object.kind) {
+            case SymObject.KIND_CON:
+                object.type = readType(data, classes);
+                object.value = data.readInt();
+                break;
+            case SymObject.KIND_VAR:
+                object.type = readType(data, classes);
+                object.address = data.readInt();
+                break;
+            case SymObject.KIND_TYPE:
+                object.type = classType(object.name, classes);
+                object.type.fields = readVariables(data, classes);
+                break;
+            case SymObject.KIND_METHOD:
+                object.type = readType(data, classes);
+                object.address = data.readInt();
+                object.end = data.readInt();
+                object.locals = readVariables(data, classes);
+                object.parameters = object.locals.size();
+                break;
+            default:
+                throw new IOException("Invalid declaration: " + object.name);
+        }
+        return object;
+    }
+
+    private static List<SymObject> readVariables(DataInputStream data,
+            Map<String, Struct> classes) throws IOException {
+        List<SymObject> variables = new ArrayList<SymObject>();
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = data.readUTF();
+            SymObject variable = new SymObject(SymObject.KIND_VAR,
+                    readType(data, classes), name);
+            variable.level = 1;
+            variable.address = i;
+            variables.add(variable);
+        }
+        return variables;
+    }
+
+    private static Struct readType(DataInputStream data,
+            Map<String, Struct> classes) throws IOException {
+        int type = data.readUnsignedByte();
+        switch (type) {
+            case TYPE_NONE:
+                return SymbolTable.STRUCT_NONE;
+            case TYPE_INT:
+                return SymbolTable.STRUCT_INT;
+            case TYPE_CHAR:
+                return SymbolTable.STRUCT_CHAR;
+            case TYPE_ARRAY:
+                return new Struct(Struct.KIND_ARRAY, readType(data, classes));
+            case TYPE_CLASS:
+                return classType(data.readUTF(), classes);
+            default:
+                throw new IOException("Invalid type: " + type);
+        }
+    }
+
+    private static Struct classType(String name,
+            Map<String, Struct> classes) {
+        Struct type = classes.get(name);
+        if (type == null) {
+            type = new Struct(Struct.KIND_CLASS);
+            type.name = name;
+            classes.put(name, type);
+        }
+        return type;
+    }
+
+}
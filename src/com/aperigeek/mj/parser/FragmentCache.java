@@ -0,0 +1,331 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.parser;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.DebugInfo;
+import com.aperigeek.mj.scanner.Token;
+import com.aperigeek.mj.symtab.Struct;
+import com.aperigeek.mj.symtab.SymObject;
+import com.aperigeek.mj.symtab.SymbolTable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Code of the method bodies compiled by a previous compilation of a
+ * program, used to compile it again incrementally.
+ *
+ * Each body is identified by a digest of everything its code depends on:
+ * its tokens, the method signature and local variables, the global
+ * declarations named in the body, the code of the methods it may inline,
+ * and the compilation options. A body whose digest hasn't changed gets the
+ * code compiled previously, only the other bodies are parsed again.
+ *
+ * The cache is written to a file between compilations, see write and read.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class FragmentCache {
+
+    /**
+     * Compiled method body
+     */
+    private static class Fragment {
+
+        byte[] digest;
+
+        Code code;
+
+        boolean inline;
+
+        List<Integer> callSites = new ArrayList<Integer>();
+
+        List<String> callees = new ArrayList<String>();
+
+    }
+
+    /**
+     * Fragments by method name
+     */
+    private Map<String, Fragment> fragments =
+            new LinkedHashMap<String, Fragment>();
+
+    /**
+     * Computes the digest of a method body, before its compilation
+     * @param body the method body
+     * @param tokens the program tokens
+     * @param globals index of the global declarations in the global scope,
+     * by name
+     * @param scope the global scope
+     * @param digests digests of the bodies declared before this one
+     * @param inlineLimit see Parser.inlineLimit
+     * @param debug whether debug informations are generated
+     */
+    static byte[] digest(MethodBody body, List<Token> tokens,
+            Map<String, Integer> globals, List<SymObject> scope,
+            Map<SymObject, byte[]> digests, int inlineLimit, boolean debug) {
+        StringBuilder text = new StringBuilder();
+        text.append(inlineLimit).append(' ').append(debug).append('\n');
+        describe(text, body.method);
+        for (SymObject local : body.method.locals) {
+            describe(text, local);
+        }
+
+        Set<String> names = new LinkedHashSet<String>();
+        for (Token token : tokens.subList(body.start, body.end)) {
+            text.append(token.kind).append(' ')
+                    .append(token.string).append(' ')
+                    .append(token.value).append(' ');
+            // Debug informations hold absolute line numbers
+            if (debug) {
+                text.append(token.line);
+            }
+            text.append('\n');
+            if (token.kind == Token.IDENT) {
+                names.add(token.string);
+            }
+        }
+
+        // Names may also be local variables or fields, their global
+        // homonyms are then described too
+        for (String name : names) {
+            Integer index = globals.get(name);
+            if (index == null || index >= body.declarations) {
+                continue;
+            }
+            SymObject global = scope.get(index);
+            describe(text, global);
+            byte[] digest = digests.get(global);
+            if (inlineLimit > 0 && digest != null) {
+                text.append(toHex(digest)).append('\n');
+            }
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return digest.digest(text.toString().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void describe(StringBuilder text, SymObject object) {
+        text.append(object.kind).append(' ').append(object.name).append(' ');
+        describe(text, object.type, new HashSet<Struct>());
+        switch (object.kind) {
+            case SymObject.KIND_CON:
+                text.append(' ').append(object.value);
+                break;
+            case SymObject.KIND_VAR:
+                text.append(' ').append(object.address);
+                break;
+            case SymObject.KIND_METHOD:
+                text.append(" (");
+                for (SymObject parameter
+                        : object.locals.subList(0, object.parameters)) {
+                    describe(text, parameter.type, new HashSet<Struct>());
+                    text.append(' ');
+                }
+                text.append(')');
+                break;
+        }
+        text.append('\n');
+    }
+
+    /**
+     * Describes a type. Classes are described with their fields,
+     * recursively.
+     */
+    public static String describe(Struct type) {
+        StringBuilder text = new StringBuilder();
+        describe(text, type, new HashSet<Struct>());
+        return text.toString();
+    }
+
+    private static void describe(StringBuilder text, Struct type,
+            Set<Struct> classes) {
+        if (type == SymbolTable.STRUCT_NULL) {
+            text.append("null");
+        } else if (type.kind == Struct.KIND_ARRAY) {
+            text.append('[');
+            describe(text, type.elementsType, classes);
+        } else if (type.kind == Struct.KIND_CLASS) {
+            text.append(type.name);
+            if (classes.add(type)) {
+                text.append('{');
+                for (SymObject field : type.fields) {
+                    text.append(field.name).append(' ');
+                    describe(text, field.type, classes);
+                    text.append(';');
+                }
+                text.append('}');
+            }
+        } else {
+            text.append(type.kind);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Gives a method body the code compiled previously, if its digest
+     * hasn't changed
+     * @param body the method body, with its digest
+     * @param table symbol table holding the called methods
+     * @return whether the code was found
+     */
+    boolean restore(MethodBody body, SymbolTable table) {
+        Fragment fragment = fragments.get(body.method.name);
+        if (fragment == null
+                || !Arrays.equals(fragment.digest, body.digest)) {
+            return false;
+        }
+
+        body.code = fragment.code;
+        body.callSites = fragment.callSites;
+        body.callees = new ArrayList<SymObject>();
+        for (String callee : fragment.callees) {
+            body.callees.add(table.find(callee));
+        }
+        body.method.inline = fragment.inline;
+        body.method.end = fragment.code.pc;
+        return true;
+    }
+
+    /**
+     * Replaces the cached fragments by the bodies of a program compiled
+     * without errors
+     * @param bodies the method bodies
+     */
+    void update(List<MethodBody> bodies) {
+        fragments.clear();
+        for (MethodBody body : bodies) {
+            Fragment fragment = new Fragment();
+            fragment.digest = body.digest;
+            fragment.code = body.code;
+            fragment.inline = body.method.inline;
+            fragment.callSites.addAll(body.callSites);
+            for (SymObject callee : body.callees) {
+                fragment.callees.add(callee.name);
+            }
+            fragments.put(body.method.name, fragment);
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeByte('M');
+            data.writeByte('J');
+            data.writeByte('C');
+            data.writeInt(fragments.size());
+            for (Map.Entry<String, Fragment> entry : fragments.entrySet()) {
+                Fragment fragment = entry.getValue();
+                data.writeUTF(entry.getKey());
+                data.write(fragment.digest);
+                data.writeBoolean(fragment.inline);
+
+                data.writeInt(fragment.code.pc);
+                for (int i = 0; i < fragment.code.pc; i++) {
+                    data.writeByte(fragment.code.get(i));
+                }
+                if (fragment.code.debug == null) {
+                    data.writeInt(-1);
+                } else {
+                    ByteArrayOutputStream debug = new ByteArrayOutputStream();
+                    fragment.code.debug.write(debug);
+                    data.writeInt(debug.size());
+                    debug.writeTo(data);
+                }
+
+                data.writeInt(fragment.callSites.size());
+                for (int i = 0; i < fragment.callSites.size(); i++) {
+                    data.writeInt(fragment.callSites.get(i));
+                    data.writeUTF(fragment.callees.get(i));
+                }
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Reads a cache, as written by write
+     * @param in stream to read from. The stream is closed once read.
+     * @return the cache
+     * @throws IOException if the stream can't be read, or doesn't contain
+     * a valid cache
+     */
+    public static FragmentCache read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedByte() != 'M'
+                    || data.readUnsignedByte() != 'J'
+                    || data.readUnsignedByte() != 'C') {
+                throw new IOException("Not a MicroJava cache file");
+            }
+
+            FragmentCache cache = new FragmentCache();
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = data.readUTF();
+                Fragment fragment = new Fragment();
+                fragment.digest = new byte[20];
+                data.readFully(fragment.digest);
+                fragment.inline = data.readBoolean();
+
+                fragment.code = new Code();
+                int codeSize = data.readInt();
+                for (int j = 0; j < codeSize; j++) {
+                    fragment.code.put(data.readUnsignedByte());
+                }
+                int debugSize = data.readInt();
+                if (debugSize >= 0) {
+                    byte[] debug = new byte[debugSize];
+                    data.readFully(debug);
+                    fragment.code.debug = DebugInfo.read(
+                            new ByteArrayInputStream(debug));
+                }
+
+                int calls = data.readInt();
+                for (int j = 0; j < calls; j++) {
+                    fragment.callSites.add(data.readInt());
+                    fragment.callees.add(data.readUTF());
+                }
+                cache.fragments.put(name, fragment);
+            }
+            return cache;
+        } finally {
+            data.close();
+        }
+    }
+
+}
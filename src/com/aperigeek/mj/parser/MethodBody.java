@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.parser;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.symtab.SymObject;
+import java.util.List;
+
+/**
+ * Method body found by the declarations pass, and the result of its
+ * compilation
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class MethodBody {
+
+    public SymObject method;
+
+    /**
+     * Source line of the method declaration
+     */
+    public int line;
+
+    /**
+     * Index of the first token of the body, and of the first token after
+     * it
+     */
+    public int start;
+
+    public int end;
+
+    /**
+     * Number of global declarations visible in the body: the ones before
+     * the method, and the method itself
+     */
+    public int declarations;
+
+    /**
+     * Digest of the body and of the declarations it depends on, when
+     * compiling incrementally
+     */
+    public byte[] digest;
+
+    /**
+     * Generated code, starting at address 0
+     */
+    public Code code;
+
+    /**
+     * Errors found while compiling the body
+     */
+    public int errors;
+
+    /**
+     * Calls in the generated code: address of the call operand, and called
+     * method
+     */
+    public List<Integer> callSites;
+
+    public List<SymObject> callees;
+
+}
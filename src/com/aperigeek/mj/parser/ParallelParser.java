@@ -0,0 +1,341 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.parser;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.DebugInfo;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.diagnostics.DiagnosticSink;
+import com.aperigeek.mj.scanner.Scanner;
+import com.aperigeek.mj.scanner.Token;
+import com.aperigeek.mj.stats.Stats;
+import com.aperigeek.mj.symtab.Scope;
+import com.aperigeek.mj.symtab.SymObject;
+import com.aperigeek.mj.symtab.SymbolTable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Compiles the method bodies of a program in parallel.
+ *
+ * The source is scanned first. A declarations pass then parses constants,
+ * classes, global variables and method signatures into the symbol table,
+ * and skips method bodies. Each body is then compiled by its own parser,
+ * on a pool of threads, into a separate code buffer starting at address 0.
+ * A body only sees the declarations placed before it, as when compiling
+ * sequentially.
+ *
+ * Buffers are finally concatenated in source order: jumps are moved by the
+ * address of their buffer, and calls get the final address of the called
+ * method. The result is identical to the sequential compilation.
+ *
+ * Methods are only inlined once their code is complete: compiling a body
+ * waits for the bodies of the methods it inlines. These are declared
+ * before it, so their compilation has already started.
+ *
+ * Errors are reported by compiling the program again sequentially, so that
+ * they are reported in source order.
+ *
+ * When compiling incrementally, bodies which haven't changed since the
+ * previous compilation aren't parsed again: their code is taken from a
+ * FragmentCache, and linked with the code of the other bodies.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class ParallelParser {
+
+    private Scanner scanner;
+
+    private int threads;
+
+    /**
+     * Maximum size of the method bodies inlined at call sites, see
+     * Parser.inlineLimit
+     */
+    public int inlineLimit;
+
+    /**
+     * Whether debug informations have to be generated
+     */
+    public boolean debug;
+
+    /**
+     * Receives the compilation errors
+     */
+    public DiagnosticSink diagnostics = new DiagnosticBuffer();
+
+    /**
+     * Measures the parsing, or null. The symbol table operations of the
+     * method bodies compiled on other threads are measured as parsing.
+     */
+    public Stats stats;
+
+    /**
+     * Errors count
+     */
+    public int errors;
+
+    /**
+     * Generated code, once parsed
+     */
+    public Code code;
+
+    /**
+     * Code of the bodies compiled previously, or null to compile all of
+     * them. The cache is updated once the program is compiled without
+     * errors.
+     */
+    public FragmentCache cache;
+
+    /**
+     * Number of method bodies compiled, the other ones were found in the
+     * cache
+     */
+    public int compiled;
+
+    /**
+     * Compilation of each method body
+     */
+    private Map<SymObject, FutureTask<MethodBody>> tasks =
+            new HashMap<SymObject, FutureTask<MethodBody>>();
+
+    /**
+     * @param scanner scanner returning the tokens to parse
+     * @param threads number of method bodies compiled at the same time
+     */
+    public ParallelParser(Scanner scanner, int threads) {
+        this.scanner = scanner;
+        this.threads = threads;
+    }
+
+    public void parse() {
+        if (stats == null) {
+            parseProgram();
+            return;
+        }
+        stats.enter(Stats.PARSE);
+        try {
+            parseProgram();
+        } finally {
+            stats.exit();
+        }
+    }
+
+    private void parseProgram() {
+        List<Token> tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = scanner.next();
+            tokens.add(token);
+        } while (token.kind != Token.EOF);
+
+        Parser declarations = new Parser(tokens, 0);
+        // Errors are reported by the sequential compilation
+        declarations.diagnostics = new DiagnosticBuffer(0);
+        declarations.bodies = new ArrayList<MethodBody>();
+        declarations.stats = stats;
+        declarations.parse();
+
+        if (declarations.errors == 0) {
+            if (cache != null) {
+                digest(tokens, declarations);
+            }
+            List<MethodBody> bodies = compile(tokens, declarations);
+            if (bodies != null) {
+                link(declarations, bodies);
+                if (cache != null) {
+                    cache.update(bodies);
+                }
+                return;
+            }
+        }
+
+        Parser parser = new Parser(tokens, 0);
+        parser.diagnostics = diagnostics;
+        parser.stats = stats;
+        parser.inlineLimit = inlineLimit;
+        if (debug) {
+            parser.code.debug = new DebugInfo();
+        }
+        parser.parse();
+        errors = parser.errors;
+        code = parser.code;
+    }
+
+    /**
+     * Computes the digest of the method bodies, in source order
+     */
+    private void digest(List<Token> tokens, Parser declarations) {
+        List<SymObject> scope = new ArrayList<SymObject>(
+                declarations.table.currentScope.locals);
+        Map<String, Integer> globals = new HashMap<String, Integer>();
+        for (int i = 0; i < scope.size(); i++) {
+            globals.put(scope.get(i).name, i);
+        }
+
+        Map<SymObject, byte[]> digests = new HashMap<SymObject, byte[]>();
+        for (MethodBody body : declarations.bodies) {
+            body.digest = FragmentCache.digest(body, tokens, globals, scope,
+                    digests, inlineLimit, debug);
+            digests.put(body.method, body.digest);
+        }
+    }
+
+    /**
+     * Compiles the method bodies found by the declarations pass
+     * @return the compiled bodies, or null if errors were found
+     */
+    private List<MethodBody> compile(final List<Token> tokens,
+            Parser declarations) {
+        final List<SymObject> globals =
+                declarations.table.currentScope.locals;
+
+        // All tasks are known before any of them runs, so that they can
+        // look each other up
+        List<FutureTask<MethodBody>> queue =
+                new ArrayList<FutureTask<MethodBody>>();
+        for (final MethodBody body : declarations.bodies) {
+            FutureTask<MethodBody> task;
+            if (cache != null
+                    && cache.restore(body, declarations.table)) {
+                task = new FutureTask<MethodBody>(new Callable<MethodBody>() {
+                    public MethodBody call() {
+                        return body;
+                    }
+                });
+            } else {
+                task = new FutureTask<MethodBody>(new Callable<MethodBody>() {
+                    public MethodBody call() {
+                        return compile(tokens, globals, body);
+                    }
+                });
+                compiled++;
+            }
+            tasks.put(body.method, task);
+            queue.add(task);
+        }
+
+        // Tasks are started in order, a task only waits for tasks which
+        // have already been started
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (FutureTask<MethodBody> task : queue) {
+                executor.execute(task);
+            }
+
+            List<MethodBody> bodies = new ArrayList<MethodBody>();
+            boolean failed = false;
+            for (FutureTask<MethodBody> task : queue) {
+                MethodBody body = task.get();
+                failed |= body.errors > 0;
+                bodies.add(body);
+            }
+            return failed ? null : bodies;
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private MethodBody compile(List<Token> tokens, List<SymObject> globals,
+            MethodBody body) {
+        // Bodies don't declare globals, the declarations pass is done and
+        // all the tasks share its scope
+        Scope declarations = new Scope();
+        declarations.locals = Collections.unmodifiableList(
+                globals.subList(0, body.declarations));
+        Scope scope = new Scope();
+        scope.parent = declarations;
+        scope.locals = body.method.locals;
+
+        Parser parser = new Parser(tokens, body.start);
+        parser.diagnostics = new DiagnosticBuffer(0);
+        parser.table = new SymbolTable(scope, 1);
+        parser.inlineLimit = inlineLimit;
+        parser.fragments = this;
+        if (debug) {
+            parser.code.debug = new DebugInfo();
+        }
+        parser.parseMethodBody(body);
+
+        body.code = parser.code;
+        body.errors = parser.errors;
+        body.callSites = parser.callSites;
+        body.callees = parser.callees;
+        return body;
+    }
+
+    /**
+     * Gets the code of a method, waiting for its compilation
+     * @param method the method
+     * @return the code buffer, or null if the method isn't compiled here
+     */
+    Code codeOf(SymObject method) {
+        FutureTask<MethodBody> task = tasks.get(method);
+        if (task == null) {
+            return null;
+        }
+        try {
+            return task.get().code;
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Concatenates the code of the method bodies
+     */
+    private void link(Parser declarations, List<MethodBody> bodies) {
+        code = new Code();
+        code.dataSize = declarations.code.dataSize;
+        if (debug) {
+            code.debug = new DebugInfo();
+        }
+
+        for (MethodBody body : bodies) {
+            int base = code.pc;
+            body.method.address = base;
+            body.method.end += base;
+            code.append(body.code);
+            if (debug) {
+                code.debug.append(body.code.debug, base);
+            }
+
+            int pos = 0;
+            while (pos < body.code.pc) {
+                int op = body.code.get(pos);
+                if (op >= Code.OP_JMP && op <= Code.OP_JGE) {
+                    code.put2(base + pos + 1, base + body.code.get2(pos + 1));
+                }
+                pos += Code.instructionSize(op);
+            }
+        }
+
+        for (MethodBody body : bodies) {
+            for (int i = 0; i < body.callSites.size(); i++) {
+                code.put2(body.method.address + body.callSites.get(i),
+                        body.callees.get(i).address);
+            }
+        }
+
+        code.mainPc = declarations.table.find("main").address;
+    }
+
+}
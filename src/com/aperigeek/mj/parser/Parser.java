@@ -7,12 +7,17 @@ package com.aperigeek.mj.parser;
 
 import com.aperigeek.mj.codegen.Code;
 import com.aperigeek.mj.codegen.Operand;
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.diagnostics.DiagnosticSink;
 import com.aperigeek.mj.scanner.Scanner;
 import com.aperigeek.mj.scanner.Token;
+import com.aperigeek.mj.stats.Stats;
 import com.aperigeek.mj.symtab.NameAlreadyExistsExcpetion;
 import com.aperigeek.mj.symtab.Struct;
 import com.aperigeek.mj.symtab.SymObject;
 import com.aperigeek.mj.symtab.SymbolTable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -63,6 +68,24 @@ public class Parser {
      */
     private Scanner scanner;
 
+    /**
+     * Tokens to parse when they have been scanned beforehand, in which
+     * case the scanner isn't used, and index of the next one to read
+     */
+    private List<Token> tokens;
+
+    private int position;
+
+    /**
+     * Receives the compilation errors
+     */
+    public DiagnosticSink diagnostics = new DiagnosticBuffer();
+
+    /**
+     * Measures the parsing and the symbol table operations, or null
+     */
+    public Stats stats;
+
     /**
      * Current token
      */
@@ -81,7 +104,7 @@ public class Parser {
     /**
      * Symbol table
      */
-    private SymbolTable table;
+    SymbolTable table;
 
     /**
      * Current method.
@@ -90,23 +113,124 @@ public class Parser {
      */
     private SymObject currentMethod;
 
+    /**
+     * Source line of the current method declaration
+     */
+    private int methodLine;
+
     /**
      * Generated code buffer
      */
     public Code code = new Code();
 
+    /**
+     * Maximum size, in bytes, of the method bodies inlined at call sites.
+     *
+     * Only leaf methods (methods which don't call any other method) are
+     * inlined. 0 disables inlining.
+     */
+    public int inlineLimit;
+
+    /**
+     * Number of local variables used by the bodies inlined in the current
+     * method, in addition to its own local variables
+     */
+    private int inlineLocals;
+
+    /**
+     * Method calls generated so far: address of the call operand, and
+     * called method
+     */
+    public List<Integer> callSites = new ArrayList<Integer>();
+
+    public List<SymObject> callees = new ArrayList<SymObject>();
+
+    /**
+     * Whether the program is a unit linked with other ones later. The main
+     * method is then optional.
+     */
+    public boolean unit;
+
+    /**
+     * Declarations exported by other units, visible in the program. They
+     * are declared before the program ones, imported global variables
+     * thus get the first addresses.
+     */
+    public List<SymObject> imports = new ArrayList<SymObject>();
+
+    /**
+     * Index of the first program declaration in the global scope
+     */
+    private int firstDeclaration;
+
+    /**
+     * Declarations pass: method bodies aren't parsed, they are skipped and
+     * recorded here. Null when compiling bodies.
+     */
+    List<MethodBody> bodies;
+
+    /**
+     * Parallel compilation: gives the code of methods compiled by other
+     * parsers. Null when the whole program is compiled by this parser.
+     */
+    ParallelParser fragments;
+
     /**
      * Creates a new parser, with the provided Scanner for obtaining tokens
      * @param scanner
      */
     public Parser(Scanner scanner) {
         this.scanner = scanner;
+    }
+
+    /**
+     * Creates a parser reading tokens scanned beforehand
+     * @param tokens the tokens, ending with an EOF token
+     * @param start index of the first token to parse
+     */
+    Parser(List<Token> tokens, int start) {
+        this.tokens = tokens;
+        // The current token is the one before the first one to parse
+        position = Math.max(start - 1, 0);
         scan();
+        if (start > 0) {
+            scan();
+        }
     }
 
     public void parse() {
         this.table = new SymbolTable();
-        parseProgram();
+        table.stats = stats;
+        for (SymObject object : imports) {
+            try {
+                table.insert(object);
+            } catch (NameAlreadyExistsExcpetion ex) {
+                // No token has been read yet
+                errors++;
+                diagnostics.report(Diagnostic.ERROR,
+                        Diagnostic.DECLARED_BY_UNITS, 0, 0, object.name);
+            }
+        }
+        firstDeclaration = table.currentScope.locals.size();
+        if (stats == null) {
+            parseProgram();
+            return;
+        }
+        stats.enter(Stats.PARSE);
+        try {
+            parseProgram();
+        } finally {
+            stats.exit();
+        }
+    }
+
+    /**
+     * Gets the constants, classes, global variables and methods declared
+     * by the program, once parsed
+     */
+    public List<SymObject> declarations() {
+        List<SymObject> globals = table.currentScope.locals;
+        return globals.subList(firstDeclaration, globals.size());
     }
 
     /**
@@ -114,7 +238,11 @@ public class Parser {
      */
     private void scan() {
         token = nextToken;
-        nextToken = scanner.next();
+        if (tokens == null) {
+            nextToken = scanner.next();
+        } else {
+            nextToken = tokens.get(Math.min(position++, tokens.size() - 1));
+        }
     }
 
     /**
@@ -129,19 +257,19 @@ public class Parser {
         if (nextToken.kind == expectedKind) {
             scan();
         } else {
-            error(expectedKind + " expected, found " + nextToken.kind);
+            error(Diagnostic.TOKEN_EXPECTED, expectedKind, nextToken.kind);
         }
     }
 
     /**
-     * Reports a compiler error.
-     * @param message the error message
+     * Reports a compiler error, at the current token
+     * @param code the error code, see Diagnostic
+     * @param arguments arguments of the error message
      */
-    private void error(String message) {
+    private void error(int code, Object... arguments) {
         errors++;
-        System.err.println("Line " + token.line + ","
-                + " Col " + token.col + ": "
-                + message);
+        diagnostics.report(Diagnostic.ERROR, code, token.line, token.col,
+                arguments);
     }
 
     /**
@@ -152,7 +280,7 @@ public class Parser {
         try {
             table.insert(obj);
         } catch (NameAlreadyExistsExcpetion ex) {
-            error(obj.name + " already declared");
+            error(Diagnostic.ALREADY_DECLARED, obj.name);
         }
     }
 
@@ -165,7 +293,7 @@ public class Parser {
     private SymObject find(String name) {
         SymObject object = table.find(name);
         if (object == SymbolTable.OBJECT_NONE) {
-            error(name + " can't be resolved to a name");
+            error(Diagnostic.UNRESOLVED_NAME, name);
         }
 
         return object;
@@ -184,7 +312,7 @@ public class Parser {
             }
         }
 
-        error(name + " can't be find as a field");
+        error(Diagnostic.UNRESOLVED_FIELD, name);
         return SymbolTable.OBJECT_NONE;
     }
 
@@ -195,7 +323,7 @@ public class Parser {
      */
     private void assertIsType(SymObject object) {
         assertIsOfKind(object, SymObject.KIND_TYPE,
-                object.name + " can't be resolved to a type");
+                Diagnostic.UNRESOLVED_TYPE);
     }
 
     /**
@@ -205,7 +333,7 @@ public class Parser {
      */
     private void assertIsVar(SymObject object) {
         assertIsOfKind(object, SymObject.KIND_VAR,
-                object.name + " can't be resolved to a variable");
+                Diagnostic.UNRESOLVED_VARIABLE);
     }
 
     /**
@@ -215,7 +343,7 @@ public class Parser {
      */
     private void assertIsMethod(SymObject object) {
         assertIsOfKind(object, SymObject.KIND_METHOD,
-                object.name + " can't be resolved to a method");
+                Diagnostic.UNRESOLVED_METHOD);
     }
 
     /**
@@ -223,11 +351,12 @@ public class Parser {
      * given error if that's not the case
      * @param object object to test
      * @param kind expected kind
-     * @param error error to report
+     * @param code code of the error to report, whose argument is the
+     * object name
      */
-    private void assertIsOfKind(SymObject object, int kind, String error) {
+    private void assertIsOfKind(SymObject object, int kind, int code) {
         if (object.kind != kind) {
-            error(error);
+            error(code, object.name);
         }
     }
 
@@ -238,6 +367,11 @@ public class Parser {
      *           '{' {MethodDecl} '}'
      */
     private void parseProgram() {
+        if (tokens == null) {
+            // The first token is only scanned now, so that scanning it is
+            // measured as a part of the parsing
+            scan();
+        }
         check(Token.PROGRAM);
         check(Token.IDENT);
 
@@ -262,7 +396,7 @@ public class Parser {
         code.dataSize = table.variables;
 
         if (table.currentScope.locals.size() > 32767) {
-            error("Too many global variables");
+            error(Diagnostic.TOO_MANY_GLOBALS);
         }
 
         check(Token.LBRACE);
@@ -276,15 +410,19 @@ public class Parser {
         // Checks presence of a main method
         SymObject mainMethod = table.find("main");
         if (mainMethod == SymbolTable.OBJECT_NONE) {
-            error("main method is required");
-        }
-        if (mainMethod.parameters != 0) {
-            error("main method must have no parameters");
-        }
-        if (mainMethod.type != SymbolTable.STRUCT_NONE) {
-            error("main method must return void");
+            if (!unit) {
+                error(Diagnostic.MAIN_REQUIRED);
+            }
+            code.mainPc = -1;
+        } else {
+            if (mainMethod.parameters != 0) {
+                error(Diagnostic.MAIN_PARAMETERS);
+            }
+            if (mainMethod.type != SymbolTable.STRUCT_NONE) {
+                error(Diagnostic.MAIN_TYPE);
+            }
+            code.mainPc = mainMethod.address;
         }
-        code.mainPc = mainMethod.address;
 
         check(Token.RBRACE);
 
@@ -309,14 +447,14 @@ public class Parser {
 
         if (nextToken.kind != Token.NUMBER
                 && nextToken.kind != Token.CHAR_CONST) {
-            error("Expected number or char constant");
+            error(Diagnostic.CONSTANT_EXPECTED);
         }
 
         if ((nextToken.kind == Token.NUMBER
                 && type != SymbolTable.STRUCT_INT)
                 || (nextToken.kind == Token.CHAR_CONST
                 && type != SymbolTable.STRUCT_CHAR)) {
-            error("Incompatible types in constant declaration");
+            error(Diagnostic.CONSTANT_TYPE);
         }
 
         scan();
@@ -344,6 +482,7 @@ public class Parser {
         SymObject clazz = new SymObject(SymObject.KIND_TYPE,
                 new Struct(Struct.KIND_CLASS),
                 className);
+        clazz.type.name = className;
 
         insert(clazz);
         table.openScope();
@@ -356,7 +495,7 @@ public class Parser {
         table.closeScope();
 
         if (clazz.type.fields.size() > 32767) {
-            error("Too many field in class");
+            error(Diagnostic.TOO_MANY_FIELDS);
         }
 
         check(Token.RBRACE);
@@ -390,6 +529,23 @@ public class Parser {
      * MethodDecl = (Type | "void") ident "(" [FormPars] ")" {VarDecl} Block
      */
     private void parseMethodDecl() {
+        SymObject method = parseMethodHeader();
+        if (bodies == null) {
+            parseMethodBody(method);
+        } else {
+            skipMethodBody(method);
+        }
+    }
+
+    /**
+     * Parses a method declaration, up to its body. The method scope is left
+     * open.
+     *
+     * (Type | "void") ident "(" [FormPars] ")" {VarDecl}
+     *
+     * @return the method
+     */
+    private SymObject parseMethodHeader() {
         Struct type;
         if (nextToken.kind == Token.IDENT) {
             type = parseType();
@@ -404,6 +560,9 @@ public class Parser {
                 type, token.string);
         insert(method);
         method.address = code.pc;
+        methodLine = token.line;
+        code.method(method.name);
+        code.line(methodLine);
         currentMethod = method;
 
         check(Token.LPAR);
@@ -415,8 +574,8 @@ public class Parser {
         }
 
         method.parameters = table.currentScope.locals.size();
-        System.out.println(method.name);
-        System.out.println(method.parameters);
+        // Parameters are required to check recursive calls
+        method.locals = table.currentScope.locals;
 
         check(Token.RPAR);
 
@@ -424,9 +583,25 @@ public class Parser {
             parseVarDecl();
         }
 
+        return method;
+    }
+
+    /**
+     * Parses a method body, and generates the method code. The method
+     * scope, opened by parseMethodHeader, is closed once done.
+     *
+     * Block
+     *
+     * @param method the method
+     */
+    void parseMethodBody(SymObject method) {
+        currentMethod = method;
+
         code.put(Code.OP_ENTER);
         code.put(method.parameters);
+        int localsFixup = code.pc;
         code.put(table.currentScope.locals.size());
+        inlineLocals = 0;
 
         parseBlock();
 
@@ -438,12 +613,228 @@ public class Parser {
             code.put(1);
         }
 
-        method.locals = table.currentScope.locals;
+        method.end = code.pc;
         table.closeScope();
 
         if (method.locals.size() > 127) {
-            error("Too many local variables for method");
+            error(Diagnostic.TOO_MANY_LOCALS);
+        }
+
+        if (inlineLocals > 0) {
+            code.put(localsFixup, method.locals.size() + inlineLocals);
+        }
+        method.inline = isInlinable(method);
+    }
+
+    /**
+     * Compiles a method body recorded by the declarations pass. The parser
+     * must have been created at the first token of the body, and the
+     * method scope must be the current scope of its symbol table.
+     * @param body the method body
+     */
+    void parseMethodBody(MethodBody body) {
+        code.method(body.method.name);
+        code.line(body.line);
+        parseMethodBody(body.method);
+        if (position - 1 != body.end) {
+            error(Diagnostic.BODY_END);
+        }
+    }
+
+    /**
+     * Skips a method body during the declarations pass, recording where it
+     * is, and closes the method scope
+     * @param method the method
+     */
+    private void skipMethodBody(SymObject method) {
+        MethodBody body = new MethodBody();
+        body.method = method;
+        body.line = methodLine;
+        body.start = position - 1;
+
+        check(Token.LBRACE);
+        int depth = 1;
+        while (depth > 0) {
+            if (nextToken.kind == Token.EOF) {
+                check(Token.RBRACE);
+                break;
+            } else if (nextToken.kind == Token.LBRACE) {
+                depth++;
+            } else if (nextToken.kind == Token.RBRACE) {
+                depth--;
+            }
+            scan();
+        }
+
+        body.end = position - 1;
+        table.closeScope();
+        // The method itself is the last declaration visible in its body
+        body.declarations = table.currentScope.locals.size();
+        bodies.add(body);
+    }
+
+    /**
+     * Checks whether a method body can be inlined at call sites.
+     *
+     * The body has to be small enough, and must not contain any call.
+     * This excludes recursive methods.
+     *
+     * @param method the method, whose code has been generated
+     */
+    private boolean isInlinable(SymObject method) {
+        int start = method.address + Code.instructionSize(Code.OP_ENTER);
+        if (method.end - start > inlineLimit) {
+            return false;
         }
+
+        int pos = start;
+        while (pos < method.end) {
+            int op = code.get(pos);
+            if (op == Code.OP_CALL || op == Code.OP_ENTER) {
+                return false;
+            }
+            if (op == Code.OP_EXIT && (pos + 1 >= method.end
+                    || code.get(pos + 1) != Code.OP_RETURN)) {
+                return false;
+            }
+            pos += Code.instructionSize(op);
+        }
+
+        return true;
+    }
+
+    /**
+     * Generates a method call. The method parameters have already been
+     * pushed on the expression stack.
+     *
+     * Small leaf methods are inlined, if the current method frame has
+     * room for their local variables.
+     *
+     * @param method the called method
+     */
+    private void call(SymObject method) {
+        int base = table.currentScope.locals.size();
+        // With parallel compilation, the inline flag of the method is only
+        // known once its code is
+        Code body = null;
+        if (inlineLimit > 0) {
+            body = codeOf(method);
+        }
+        // Frame size of the called method, including the local variables
+        // of the bodies inlined in it, read from its enter instruction
+        int frame = 0;
+        if (body != null && method.inline) {
+            frame = body.get(method.address + 2);
+        }
+        if (body == null || !method.inline || base + frame > 127) {
+            code.put(Code.OP_CALL);
+            callSites.add(code.pc);
+            callees.add(method);
+            code.put2(method.address);
+            return;
+        }
+
+        // Inlined bodies never run at the same time, they all share the
+        // same local variables, after the caller ones
+        if (frame > inlineLocals) {
+            inlineLocals = frame;
+        }
+
+        for (int i = method.parameters - 1; i >= 0; i--) {
+            code.put(Code.OP_STORE);
+            code.put(base + i);
+        }
+        for (int i = method.parameters; i < frame; i++) {
+            code.put(Code.OP_CONST0);
+            code.put(Code.OP_STORE);
+            code.put(base + i);
+        }
+
+        int start = method.address + Code.instructionSize(Code.OP_ENTER);
+
+        // Instructions don't keep their size once copied: the new address
+        // of each instruction is recorded, and jumps are fixed afterwards
+        int[] addresses = new int[method.end - start + 1];
+        List<Integer> jumps = new ArrayList<Integer>();
+        List<Integer> returns = new ArrayList<Integer>();
+
+        int pos = start;
+        while (pos < method.end) {
+            addresses[pos - start] = code.pc;
+            int op = body.get(pos);
+            int size = Code.instructionSize(op);
+            switch (op) {
+                case Code.OP_LOAD:
+                case Code.OP_STORE:
+                    code.put(op);
+                    code.put(base + body.get(pos + 1));
+                    break;
+                case Code.OP_LOAD0:
+                case Code.OP_LOAD1:
+                case Code.OP_LOAD2:
+                case Code.OP_LOAD3:
+                    code.put(Code.OP_LOAD);
+                    code.put(base + op - Code.OP_LOAD0);
+                    break;
+                case Code.OP_STORE0:
+                case Code.OP_STORE1:
+                case Code.OP_STORE2:
+                case Code.OP_STORE3:
+                    code.put(Code.OP_STORE);
+                    code.put(base + op - Code.OP_STORE0);
+                    break;
+                case Code.OP_JMP:
+                case Code.OP_JEQ:
+                case Code.OP_JNE:
+                case Code.OP_JLT:
+                case Code.OP_JLE:
+                case Code.OP_JGT:
+                case Code.OP_JGE:
+                    code.put(op);
+                    code.put2(body.get2(pos + 1));
+                    jumps.add(code.pc - 2);
+                    break;
+                case Code.OP_EXIT:
+                    // exit, return: leaves the inlined body. Skipped when
+                    // it's the last instruction of the body.
+                    if (pos + 2 < method.end) {
+                        code.putJump(42); // Fixed once the body is copied
+                        returns.add(code.pc - 2);
+                    }
+                    size += Code.instructionSize(Code.OP_RETURN);
+                    break;
+                default:
+                    for (int i = 0; i < size; i++) {
+                        code.put(body.get(pos + i));
+                    }
+                    break;
+            }
+            pos += size;
+        }
+        addresses[method.end - start] = code.pc;
+
+        for (int jump : jumps) {
+            code.put2(jump, addresses[code.get2(jump) - start]);
+        }
+        for (int ret : returns) {
+            code.fixup(ret);
+        }
+    }
+
+    /**
+     * Gets the code buffer containing the code of a method
+     * @param method the method
+     * @return the code buffer, or null if the method code isn't complete,
+     * or if the method is imported from another unit
+     */
+    private Code codeOf(SymObject method) {
+        if (method == currentMethod || imports.contains(method)) {
+            return null;
+        }
+        if (fragments != null) {
+            return fragments.codeOf(method);
+        }
+        return code;
     }
 
     /**
@@ -513,6 +904,8 @@ public class Parser {
      * | ";"
      */
     private void parseStatement() {
+        code.line(nextToken.line);
+
         switch (nextToken.kind) {
             case Token.IDENT:
                 parseSimpleStatement();
@@ -539,7 +932,7 @@ public class Parser {
                 check(Token.SEMICOLON);
                 break;
             default:
-                error("Illegal start of statement: " + nextToken.kind);
+                error(Diagnostic.ILLEGAL_STATEMENT, nextToken.kind);
         }
     }
 
@@ -559,23 +952,22 @@ public class Parser {
                     && operand.kind != Operand.KIND_FIELD
                     && operand.kind != Operand.KIND_LOCAL
                     && operand.kind != Operand.KIND_STATIC) {
-                error("Illegal left-hand side operand in assignment");
+                error(Diagnostic.ASSIGNMENT_OPERAND);
             }
 
             Struct type = parseExpr().type;
             if (!(type.assignableTo(operand.type))) {
-                error("Incompatible types in assignment");
+                error(Diagnostic.ASSIGNMENT_TYPE);
             }
 
             code.store(operand);
         } else {
             if (operand.kind != Operand.KIND_METHOD) {
-                error("Designator isn't a valid method");
+                error(Diagnostic.NOT_A_METHOD);
             }
             parseActPars(operand.object);
 
-            code.put(Code.OP_CALL);
-            code.put2(operand.address);
+            call(operand.object);
             if (operand.kind == Operand.KIND_METHOD
                     && operand.type != SymbolTable.STRUCT_NONE) {
                 code.put(Code.OP_POP);
@@ -645,21 +1037,60 @@ public class Parser {
     private void parseReturnStatement() {
         check(Token.RETURN);
 
+        boolean tailCall = false;
         if (EXPR_STARTERS.contains(nextToken.kind)) {
-            Struct type = parseExpr().type;
-            if (!(type.assignableTo(currentMethod.type))) {
-                error("Invalid expression type in return statement");
+            Operand operand = parseExpr();
+            if (!(operand.type.assignableTo(currentMethod.type))) {
+                error(Diagnostic.RETURN_TYPE);
             }
+            tailCall = isCallToCurrentMethod(operand);
         } else {
             if (currentMethod.type != SymbolTable.STRUCT_NONE) {
-                error("Missing return value in return statement");
+                error(Diagnostic.RETURN_VALUE);
             }
         }
 
         check(Token.SEMICOLON);
 
-        code.put(Code.OP_EXIT);
-        code.put(Code.OP_RETURN);
+        if (tailCall) {
+            // Optimisation: a tail recursive call is replaced by a jump to
+            // the beginning of the method, after the parameters have been
+            // replaced. Other local variables are reset, as a new frame
+            // would be.
+            code.remove();
+            code.remove2();
+            callSites.remove(callSites.size() - 1);
+            callees.remove(callees.size() - 1);
+            for (int i = currentMethod.parameters - 1; i >= 0; i--) {
+                code.put(Code.OP_STORE);
+                code.put(i);
+            }
+            for (int i = currentMethod.parameters;
+                    i < table.currentScope.locals.size(); i++) {
+                code.put(Code.OP_CONST0);
+                code.put(Code.OP_STORE);
+                code.put(i);
+            }
+            code.putJump(currentMethod.address
+                    + Code.instructionSize(Code.OP_ENTER));
+        } else {
+            code.put(Code.OP_EXIT);
+            code.put(Code.OP_RETURN);
+        }
+    }
+
+    /**
+     * Checks whether an expression is a call to the current method, the
+     * call instruction being the last generated one
+     * @param operand the expression
+     */
+    private boolean isCallToCurrentMethod(Operand operand) {
+        int last = callSites.size() - 1;
+        return operand.kind == Operand.KIND_METHOD
+                && operand.object == currentMethod
+                && last >= 0
+                && callSites.get(last) == code.pc - 2
+                && callees.get(last) == currentMethod;
     }
 
     /**
@@ -676,11 +1107,11 @@ public class Parser {
                 && operand.kind != Operand.KIND_FIELD
                 && operand.kind != Operand.KIND_LOCAL
                 && operand.kind != Operand.KIND_STATIC) {
-            error("Illegal operand in read statement");
+            error(Diagnostic.READ_OPERAND);
         }
         if (operand.type != SymbolTable.STRUCT_INT
                 && operand.type != SymbolTable.STRUCT_CHAR) {
-            error("Operand has to be of type int or char in read statement");
+            error(Diagnostic.READ_TYPE);
         }
 
         check(Token.RPAR);
@@ -702,7 +1133,7 @@ public class Parser {
         Struct type = parseExpr().type;
         if (type != SymbolTable.STRUCT_INT
                 && type != SymbolTable.STRUCT_CHAR) {
-            error("Illegal expression type in print statement");
+            error(Diagnostic.PRINT_TYPE);
         }
 
         if (nextToken.kind == Token.COMMA) {
@@ -735,7 +1166,7 @@ public class Parser {
             scan();
             op = token.kind;
         } else {
-            error("Relational operator expected");
+            error(Diagnostic.RELATIONAL_OPERATOR);
             op = Token.NONE;
         }
 
@@ -761,19 +1192,18 @@ public class Parser {
                 break;
             default:
                 opcode = Code.OP_TRAP;
-                error("Illegal comparison operator");
+                error(Diagnostic.COMPARISON_OPERATOR);
                 break;
         }
 
         Struct type2 = parseExpr().type;
 
         if (!type1.compatibleWith(type2)) {
-            error("Incompatible types in comparison");
+            error(Diagnostic.COMPARISON_TYPE);
         }
         if (type1.isRefType() && type2.isRefType()) {
             if (op != Token.EQL && op != Token.NEQ) {
-                error("Reference types can only be compared "
-                        + "for equality and inequality");
+                error(Diagnostic.REFERENCE_COMPARISON);
             }
         }
 
@@ -809,7 +1239,7 @@ public class Parser {
             Operand operand2 = parseTerm();
             if (operand.type != SymbolTable.STRUCT_INT ||
                     operand2.type != SymbolTable.STRUCT_INT) {
-                error("int required in addition");
+                error(Diagnostic.ADDITION_TYPE);
             }
 
             code.put(operator);
@@ -840,7 +1270,7 @@ public class Parser {
         }
 
         if (negate && operand.type != SymbolTable.STRUCT_INT) {
-            error("int required in addition");
+            error(Diagnostic.ADDITION_TYPE);
             code.put(Code.OP_NEG);
             operand = new Operand(Operand.KIND_EXPR, -1, operand.type);
         }
@@ -871,9 +1301,11 @@ public class Parser {
             Operand operand2 = parseFactor();
             if (operand.type != SymbolTable.STRUCT_INT
                     || operand2.type != SymbolTable.STRUCT_INT) {
-                error("int required in multiplication");
+                error(Diagnostic.MULTIPLICATION_TYPE);
             }
 
+            code.put(operator);
+
             // Optimisation: if two operands of a multiplication are 
             // constants, its value is computed at compile time
             if (operand.kind == Operand.KIND_CON
@@ -899,8 +1331,6 @@ public class Parser {
             } else {
                 operand = new Operand(Operand.KIND_EXPR, -1, operand.type);
             }
-
-            code.put(operator);
         }
 
         return operand;
@@ -923,15 +1353,14 @@ public class Parser {
 
                 if (nextToken.kind == Token.LPAR) {
                     if (operand.kind != Operand.KIND_METHOD) {
-                        error("Illegal method call");
+                        error(Diagnostic.ILLEGAL_CALL);
                     }
                     parseActPars(operand.object);
                     if (operand.object == SymbolTable.OBJECT_LEN) {
                         code.put(Code.OP_ARRAYLENGTH);
                     } else if(operand.object != SymbolTable.OBJECT_CHR
                             && operand.object != SymbolTable.OBJECT_ORD) {
-                        code.put(Code.OP_CALL);
-                        code.put2(operand.address);
+                        call(operand.object);
                     }
                 } else {
                     code.load(operand);
@@ -960,7 +1389,7 @@ public class Parser {
                     check(Token.LBRACK);
                     Struct sizeType = parseExpr().type;
                     if (sizeType != SymbolTable.STRUCT_INT) {
-                        error("Array size must be an int");
+                        error(Diagnostic.ARRAY_SIZE_TYPE);
                     }
                     check(Token.RBRACK);
                     type = new Struct(Struct.KIND_ARRAY, type);
@@ -973,7 +1402,7 @@ public class Parser {
                     }
                 } else {
                     if (type.kind != Struct.KIND_CLASS) {
-                        error("Illegal instantiation: type isn't a class");
+                        error(Diagnostic.NOT_A_CLASS);
                     }
 
                     code.put(Code.OP_NEW);
@@ -1005,7 +1434,7 @@ public class Parser {
         while (true) {
             if (nextToken.kind == Token.PERIOD) {
                 if (operand.type.kind != Struct.KIND_CLASS) {
-                    error("Illegal field access on a non-object var");
+                    error(Diagnostic.FIELD_ACCESS);
                 }
 
                 check(Token.PERIOD);
@@ -1018,7 +1447,7 @@ public class Parser {
                         object.address, object.type);
             } else if (nextToken.kind == Token.LBRACK) {
                 if (operand.type.kind != Struct.KIND_ARRAY) {
-                    error("Illegal element access on a non-array var");
+                    error(Diagnostic.ELEMENT_ACCESS);
                 }
 
                 code.load(operand);
@@ -1026,7 +1455,7 @@ public class Parser {
                 check(Token.LBRACK);
                 Struct indexType = parseExpr().type;
                 if (indexType != SymbolTable.STRUCT_INT) {
-                    error("Array index must be an int");
+                    error(Diagnostic.INDEX_TYPE);
                 }
                 check(Token.RBRACK);
 
@@ -1056,7 +1485,7 @@ public class Parser {
             Struct type = parseExpr().type;
             if (params < method.parameters
                     && !type.assignableTo(method.locals.get(params).type)) {
-                error("Incompatible parameters type in method call");
+                error(Diagnostic.PARAMETER_TYPE);
             }
             params++;
             while (nextToken.kind == Token.COMMA) {
@@ -1064,14 +1493,14 @@ public class Parser {
                 type = parseExpr().type;
                 if (params < method.parameters &&
                         !type.assignableTo(method.locals.get(params).type)) {
-                    error("Incompatible parameters type in method call");
+                    error(Diagnostic.PARAMETER_TYPE);
                 }
                 params++;
             }
         }
 
         if (params != method.parameters) {
-            error("Wrong number of parameters in method call");
+            error(Diagnostic.PARAMETER_COUNT);
         }
 
         check(Token.RPAR);
@@ -5,6 +5,10 @@
 
 package com.aperigeek.mj.scanner;
 
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.diagnostics.DiagnosticSink;
+import com.aperigeek.mj.stats.Stats;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
@@ -22,6 +26,11 @@ public class Scanner {
 
     public static final char CHAR_EOL = '\n';
 
+    /**
+     * Size of the input buffer
+     */
+    public static final int BUFFER_SIZE = 8192;
+
     /**
      * List of keywords and associated token code
      */
@@ -32,6 +41,24 @@ public class Scanner {
      */
     private InputStream in;
 
+    /**
+     * Input buffer, refilled from the source code input once exhausted.
+     *
+     * Reading the input by blocks avoids a call to the underlying stream,
+     * and usually a system call, for each char.
+     */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Position of the next char to read in the buffer
+     */
+    private int position;
+
+    /**
+     * Number of valid bytes in the buffer
+     */
+    private int limit;
+
     /**
      * Current character, being processed
      */
@@ -42,6 +69,16 @@ public class Scanner {
      */
     private int line = 1, col = 0;
 
+    /**
+     * Receives the lexical errors
+     */
+    public DiagnosticSink diagnostics = new DiagnosticBuffer();
+
+    /**
+     * Measures the scanning, or null
+     */
+    public Stats stats;
+
     public Scanner(InputStream in) {
         this.in = in;
         nextCh();
@@ -58,7 +95,7 @@ public class Scanner {
     private void nextCh() {
         col++;
         try {
-            int la = in.read();
+            int la = read();
             if (la == '\n') {
                 col = 0;
                 line++;
@@ -71,11 +108,41 @@ public class Scanner {
         }
     }
 
+    /**
+     * Reads the next byte of source code from the input buffer, refilling
+     * it when needed.
+     * @return the next byte, or -1 at end of file
+     * @throws IOException if the input can't be read
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            position = 0;
+            limit = in.read(buffer, 0, buffer.length);
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+
     /**
      * Reads characters to extract the next token in source code.
      * @return The next token
      */
     public Token next() {
+        if (stats == null) {
+            return scan();
+        }
+        // Scanning is interleaved with parsing, it's only timed
+        long start = System.nanoTime();
+        Token token = scan();
+        stats.scanTime += System.nanoTime() - start;
+        stats.tokens++;
+        return token;
+    }
+
+    private Token scan() {
         // Skip non-printing characters
         while (ch <= ' ') {
             nextCh();
@@ -113,9 +180,10 @@ public class Scanner {
             try {
                 token.value = Integer.parseInt(literal);
             } catch (NumberFormatException ex) {
-                System.err.println("Invalid number "
-                        + "(" + ex.getMessage() + "): "
-                        + literal);
+                // Only digits were read, the number is too large
+                diagnostics.report(Diagnostic.ERROR,
+                        Diagnostic.INVALID_NUMBER, token.line, token.col,
+                        literal);
                 token.kind = Token.NONE;
             }
         } else {
@@ -245,6 +313,10 @@ public class Scanner {
                     token.kind = Token.EOF;
                     nextCh();
                     break;
+                default:
+                    // Invalid character, returned as a NONE token
+                    nextCh();
+                    break;
             }
         }
 
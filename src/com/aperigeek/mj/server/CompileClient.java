@@ -0,0 +1,98 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Sends a compilation request to a CompileServer, and prints its results
+ * and errors as the compiler would
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class CompileClient {
+
+    private int port;
+
+    /**
+     * File the server wrote its key to
+     */
+    private File keyFile;
+
+    /**
+     * @param port port the server listens on
+     */
+    public CompileClient(int port) {
+        this(port, CompileServer.keyFile(port));
+    }
+
+    /**
+     * @param port port the server listens on
+     * @param keyFile file the server wrote its key to
+     */
+    public CompileClient(int port, File keyFile) {
+        this.port = port;
+        this.keyFile = keyFile;
+    }
+
+    /**
+     * Runs a compilation on the server
+     * @param args the compiler command line arguments. Relative file names
+     * are resolved from the current directory.
+     * @throws IOException if the server can't be reached, or its key
+     * can't be read
+     */
+    public void compile(String[] args) throws IOException {
+        String key = readKey();
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            Writer request = new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8");
+            request.write(key + "\n");
+            request.write(new File("").getAbsolutePath() + "\n");
+            for (String arg : args) {
+                request.write(arg + "\n");
+            }
+            request.write("\n");
+            request.flush();
+
+            BufferedReader response = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line = response.readLine();
+            while (line != null) {
+                if (line.startsWith("1 ")) {
+                    System.out.println(line.substring(2));
+                } else if (line.startsWith("2 ")) {
+                    System.err.println(line.substring(2));
+                }
+                line = response.readLine();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readKey() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(keyFile), "UTF-8"));
+        try {
+            String key = in.readLine();
+            return key == null ? "" : key;
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.server;
+
+import com.aperigeek.mj.Main;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long lived compiler, running compilations requested over a local socket.
+ *
+ * Compiling in a running JVM saves the JVM startup, and the compiler code
+ * stays compiled by the JIT from one request to the next. The server only
+ * listens on the loopback interface.
+ *
+ * Other users of the machine can connect to the loopback interface too:
+ * the server writes a random key to a file only its user can read, and
+ * requests have to start with this key. The key file is deleted when the
+ * server stops, and the file left by a killed server is replaced when the
+ * next one starts.
+ *
+ * The protocol is made of UTF-8 text lines, so that build tools can talk
+ * to the server directly. A request is the key, the client working
+ * directory, then the command line arguments, one per line, then an
+ * empty line. The response is made of the lines the compiler writes,
+ * prefixed with "1 "
+ * for results and "2 " for errors, then of the files written, prefixed
+ * with "3 ". The server closes the connection once done. The "-stop"
+ * request stops the server.
+ *
+ * Requests are run on a pool of threads, one per processor.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class CompileServer {
+
+    public static final int DEFAULT_PORT = 7707;
+
+    private int port;
+
+    /**
+     * File the key is written to
+     */
+    private File keyFile;
+
+    private String key;
+
+    private volatile ServerSocket socket;
+
+    /**
+     * @param port port to listen on
+     */
+    public CompileServer(int port) {
+        this(port, keyFile(port));
+    }
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     * @param keyFile file to write the key to
+     */
+    public CompileServer(int port, File keyFile) {
+        this.port = port;
+        this.keyFile = keyFile;
+    }
+
+    /**
+     * Default key file of the server listening on a port, in the user
+     * home directory
+     */
+    public static File keyFile(int port) {
+        return new File(System.getProperty("user.home"),
+                ".mj-server-" + port);
+    }
+
+    /**
+     * Accepts requests, until stopped
+     * @throws IOException if the server socket can't be opened, or the
+     * key can't be written
+     */
+    public void run() throws IOException {
+        socket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        try {
+            writeKey();
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            while (true) {
+                final Socket connection;
+                try {
+                    connection = socket.accept();
+                } catch (SocketException ex) {
+                    if (socket.isClosed()) {
+                        // Stopped by a request
+                        break;
+                    }
+                    throw ex;
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            keyFile.delete();
+        }
+    }
+
+    /**
+     * Port the server listens on, which is only known once the key file
+     * has been written when the server was created with port 0
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Generates the key, and writes it to the key file.
+     *
+     * The key is written to a file of a new directory, both only
+     * accessible by their owner before anything is written, then moved to
+     * the key file. Other users can't open the file while it is writable
+     * by them, and a stale key file is replaced.
+     */
+    private void writeKey() throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        key = hex(bytes);
+
+        random.nextBytes(bytes);
+        File parent = keyFile.getAbsoluteFile().getParentFile();
+        File directory = new File(parent,
+                "." + keyFile.getName() + "-" + hex(bytes));
+        File file = new File(directory, "key");
+        if (!directory.mkdir()) {
+            throw new IOException("Can't create key file " + keyFile);
+        }
+        try {
+            restrict(directory);
+            if (!directory.setExecutable(false, false)
+                    || !directory.setExecutable(true, true)
+                    || !file.createNewFile()) {
+                throw new IOException("Can't create key file " + keyFile);
+            }
+            restrict(file);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(key.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            // Renaming doesn't replace existing files on all platforms
+            if (!file.renameTo(keyFile)
+                    && (!keyFile.delete() || !file.renameTo(keyFile))) {
+                throw new IOException("Can't create key file " + keyFile);
+            }
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+        keyFile.deleteOnExit();
+    }
+
+    /**
+     * Makes a file only readable and writable by its owner
+     * @throws IOException if the permissions can't be changed
+     */
+    private static void restrict(File file) throws IOException {
+        if (!file.setReadable(false, false)
+                || !file.setReadable(true, true)
+                || !file.setWritable(false, false)
+                || !file.setWritable(true, true)) {
+            throw new IOException("Can't restrict access to " + file);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b & 0xff));
+        }
+        return text.toString();
+    }
+
+    private void serve(Socket connection) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), "UTF-8"));
+            OutputStream response = new BufferedOutputStream(
+                    connection.getOutputStream());
+            PrintStream out = new PrintStream(
+                    new Channel(response, '1'), false, "UTF-8");
+            PrintStream err = new PrintStream(
+                    new Channel(response, '2'), false, "UTF-8");
+
+            String requestKey = in.readLine();
+            String directory = in.readLine();
+            List<String> args = new ArrayList<String>();
+            String line = in.readLine();
+            while (line != null && line.length() > 0) {
+                args.add(line);
+                line = in.readLine();
+            }
+
+            if (requestKey == null || !MessageDigest.isEqual(
+                    key.getBytes("UTF-8"), requestKey.getBytes("UTF-8"))) {
+                err.println("Invalid compile server key");
+            } else if (args.size() == 1 && args.get(0).equals("-stop")) {
+                socket.close();
+                out.println("Compile server stopped");
+            } else if (directory != null) {
+                Main main = new Main(out, err, new File(directory));
+                try {
+                    main.run(args.toArray(new String[args.size()]));
+                } catch (RuntimeException ex) {
+                    // The server keeps running
+                    err.println("Internal compiler error");
+                    ex.printStackTrace(err);
+                }
+                PrintStream files = new PrintStream(
+                        new Channel(response, '3'), false, "UTF-8");
+                for (String output : main.outputs) {
+                    files.println(output);
+                }
+                files.flush();
+            }
+
+            out.flush();
+            err.flush();
+            response.flush();
+        } catch (IOException ex) {
+            System.err.println("Compile server: " + ex.getMessage());
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                // Nothing to do, the connection is lost anyway
+            }
+        }
+    }
+
+    /**
+     * Sends each line written to a stream, prefixed with the stream number
+     */
+    private static class Channel extends OutputStream {
+
+        private OutputStream response;
+
+        private int stream;
+
+        private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        public Channel(OutputStream response, int stream) {
+            this.response = response;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            line.write(b);
+            if (b == '\n') {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (line.size() == 0) {
+                return;
+            }
+            byte[] bytes = line.toByteArray();
+            line.reset();
+            // Lines of both streams are interleaved in the response
+            synchronized (response) {
+                response.write(stream);
+                response.write(' ');
+                response.write(bytes);
+                if (bytes[bytes.length - 1] != '\n') {
+                    response.write('\n');
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.stats;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Time spent and memory allocated by each phase of a compilation, and
+ * counts of what the phases processed.
+ *
+ * Phases are only measured where they start and end. Phases nest: while
+ * a phase is entered from another one, only the inner phase is charged,
+ * so phase times add up to the compilation time. Scanning is interleaved
+ * with parsing, its time is accumulated apart, and included in the
+ * parsing time. A Stats is only used by the thread compiling, the
+ * compiler components only measure anything when they're given one.
+ *
+ * Allocated bytes are read from the HotSpot thread allocation counter,
+ * and are 0 on virtual machines which don't provide it.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Stats {
+
+    public static final int PARSE = 0,
+            OPTIMIZE = 1,
+            WRITE = 2;
+
+    private static final String[] PHASES = {
+        "parse", "optimize", "write"
+    };
+
+    private static final ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean();
+
+    /**
+     * com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long),
+     * or null if it isn't available
+     */
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    /**
+     * Tokens read by the scanner
+     */
+    public int tokens;
+
+    /**
+     * Time spent in the scanner, in nanoseconds
+     */
+    public long scanTime;
+
+    /**
+     * Symbols declared and looked up in the symbol table
+     */
+    public int symbols;
+
+    public int lookups;
+
+    /**
+     * Instructions and bytes of code written
+     */
+    public int instructions;
+
+    public int codeSize;
+
+    private long[] times = new long[PHASES.length];
+
+    private long[] bytes = new long[PHASES.length];
+
+    /**
+     * Entered phases, innermost last
+     */
+    private int[] phases = new int[16];
+
+    private int depth;
+
+    private long thread = Thread.currentThread().getId();
+
+    /**
+     * Time and allocated bytes when the current phase was last charged
+     */
+    private long time;
+
+    private long allocated;
+
+    /**
+     * Starts measuring a phase, until the matching call to exit()
+     * @param phase one of the phase constants
+     */
+    public void enter(int phase) {
+        charge();
+        if (depth == phases.length) {
+            int[] old = phases;
+            phases = new int[old.length * 2];
+            System.arraycopy(old, 0, phases, 0, depth);
+        }
+        phases[depth++] = phase;
+    }
+
+    /**
+     * Stops measuring the innermost entered phase
+     */
+    public void exit() {
+        charge();
+        depth--;
+    }
+
+    /**
+     * Charges the current phase with the time and memory used since it
+     * was last charged
+     */
+    private void charge() {
+        long now = System.nanoTime();
+        long allocatedNow = allocatedBytes();
+        if (depth > 0) {
+            times[phases[depth - 1]] += now - time;
+            bytes[phases[depth - 1]] += allocatedNow - allocated;
+        }
+        time = now;
+        allocated = allocatedNow;
+    }
+
+    /**
+     * Time spent in a phase, in nanoseconds
+     */
+    public long time(int phase) {
+        return times[phase];
+    }
+
+    /**
+     * Bytes allocated during a phase
+     */
+    public long allocated(int phase) {
+        return bytes[phase];
+    }
+
+    /**
+     * Prints the measures of each phase and the counts
+     * @param out stream to print to
+     */
+    public void print(PrintStream out) {
+        out.println(String.format("%-10s%12s%16s",
+                "phase", "time (ms)", "allocated (KB)"));
+        long totalTime = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < PHASES.length; i++) {
+            out.println(String.format("%-10s%12.2f%16d",
+                    PHASES[i], times[i] / 1e6, bytes[i] / 1024));
+            totalTime += times[i];
+            totalBytes += bytes[i];
+        }
+        out.println(String.format("%-10s%12.2f%16d",
+                "total", totalTime / 1e6, totalBytes / 1024));
+        out.println(String.format("Scanning: %.2f ms of the parsing time",
+                scanTime / 1e6));
+        out.println(tokens + " tokens, " + symbols + " symbols declared, "
+                + lookups + " lookups, " + instructions + " instructions ("
+                + codeSize + " bytes)");
+    }
+
+    private long allocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return 0;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, thread);
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    private static Method allocatedBytesMethod() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(THREADS)) {
+                return null;
+            }
+            Method supported = type.getMethod(
+                    "isThreadAllocatedMemorySupported");
+            Method enabled = type.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) supported.invoke(THREADS)
+                    || !(Boolean) enabled.invoke(THREADS)) {
+                return null;
+            }
+            return type.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+}
@@ -19,6 +19,12 @@ public class Scope {
 
     public List<SymObject> locals;
 
+    /**
+     * Number of variables declared in this scope, saved while an inner
+     * scope is open
+     */
+    public int variables;
+
     public Scope() {
         locals = new LinkedList<SymObject>();
     }
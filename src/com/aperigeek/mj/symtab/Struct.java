@@ -27,6 +27,11 @@ public class Struct {
 
     public List<SymObject> fields;
 
+    /**
+     * Classes: name of the class
+     */
+    public String name;
+
     public Struct() {
         fields = new LinkedList<SymObject>();
     }
@@ -45,6 +45,16 @@ public class SymObject {
      */
     public int parameters;
 
+    /**
+     * Methods: address of the first byte following the method code
+     */
+    public int end;
+
+    /**
+     * Methods: whether the method body can be inlined at call sites
+     */
+    public boolean inline;
+
     public SymObject() {
         locals = new LinkedList<SymObject>();
     }
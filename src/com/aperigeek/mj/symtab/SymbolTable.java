@@ -5,6 +5,8 @@
 
 package com.aperigeek.mj.symtab;
 
+import com.aperigeek.mj.stats.Stats;
+
 /**
  *
  * @author Vivien Barousse
@@ -64,11 +66,11 @@ public class SymbolTable {
 
         OBJECT_ORD = new SymObject(SymObject.KIND_METHOD, STRUCT_INT, "ord");
         OBJECT_ORD.locals.add(new SymObject(SymObject.KIND_VAR, STRUCT_CHAR, "ch"));
-        OBJECT_CHR.parameters = 1;
+        OBJECT_ORD.parameters = 1;
 
         OBJECT_LEN = new SymObject(SymObject.KIND_METHOD, STRUCT_INT, "len");
         OBJECT_LEN.locals.add(new SymObject(SymObject.KIND_VAR, new Struct(Struct.KIND_ARRAY, STRUCT_NONE), "len"));
-        OBJECT_CHR.parameters = 1;
+        OBJECT_LEN.parameters = 1;
     }
 
     /**
@@ -88,6 +90,11 @@ public class SymbolTable {
      */
     public int variables;
 
+    /**
+     * Counts the declarations and lookups, or null
+     */
+    public Stats stats;
+
     public SymbolTable() {
         currentScope = new Scope(); // Creates the Universe
         
@@ -100,10 +107,21 @@ public class SymbolTable {
         currentScope.locals.add(OBJECT_LEN);
     }
 
+    /**
+     * Creates a symbol table whose current scope is the given one
+     * @param scope the current scope. It's shared, not copied.
+     * @param level the scope level
+     */
+    public SymbolTable(Scope scope, int level) {
+        currentScope = scope;
+        currentLevel = level;
+    }
+
     /**
      * Opens a new scope
      */
     public void openScope() {
+        currentScope.variables = variables;
         Scope newScope = new Scope();
         newScope.parent = currentScope;
         currentScope = newScope;
@@ -117,6 +135,7 @@ public class SymbolTable {
     public void closeScope() {
         currentScope = currentScope.parent;
         currentLevel--;
+        variables = currentScope.variables;
     }
 
     /**
@@ -136,6 +155,9 @@ public class SymbolTable {
             variables++;
         }
         currentScope.locals.add(object);
+        if (stats != null) {
+            stats.symbols++;
+        }
     }
 
     /**
@@ -143,6 +165,9 @@ public class SymbolTable {
      * @param name object name
      */
     public SymObject find(String name) {
+        if (stats != null) {
+            stats.lookups++;
+        }
         return find(name, currentScope);
     }
 
@@ -0,0 +1,52 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.verifier;
+
+/**
+ * Informations computed by the verifier on a single method
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class MethodInfo {
+
+    /**
+     * Address of the method, pointing to its OP_ENTER instruction
+     */
+    public int address;
+
+    /**
+     * Address of the first byte following the method code
+     */
+    public int end;
+
+    /**
+     * Number of parameters, as declared by OP_ENTER
+     */
+    public int parameters;
+
+    /**
+     * Number of local variables, parameters included, as declared by
+     * OP_ENTER
+     */
+    public int locals;
+
+    /**
+     * Maximum depth reached by the expression stack within the method
+     */
+    public int maxStack;
+
+    /**
+     * Number of values left on the expression stack when returning:
+     * 1 for functions, 0 for void methods
+     */
+    public int results;
+
+    public MethodInfo(int address) {
+        this.address = address;
+    }
+
+}
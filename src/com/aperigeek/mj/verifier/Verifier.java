@@ -0,0 +1,425 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.verifier;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.ObjectFile;
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.diagnostics.DiagnosticSink;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bytecode verifier for MicroJava object files.
+ *
+ * The verifier splits the code section in methods (each method starting
+ * with an OP_ENTER instruction), and checks that:
+ * <ul>
+ * <li>every instruction is valid and complete</li>
+ * <li>jump targets land on instruction boundaries within the method</li>
+ * <li>call targets are method entry points</li>
+ * <li>local variable indices are lower than the OP_ENTER local count</li>
+ * <li>static variable indices are lower than the data size</li>
+ * <li>the expression stack never underflows, and has the same depth
+ * whatever path leads to an instruction</li>
+ * <li>every path ends in OP_RETURN or OP_TRAP</li>
+ * </ul>
+ *
+ * The maximum expression stack depth of each method is computed on the
+ * way, so that a runtime can preallocate exact-size stacks for verified
+ * code.
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class Verifier {
+
+    /**
+     * Errors count
+     */
+    public int errors;
+
+    /**
+     * Receives the verification errors
+     */
+    public DiagnosticSink diagnostics = new DiagnosticBuffer();
+
+    /**
+     * Methods found in the code section, sorted by address
+     */
+    public List<MethodInfo> methods = new ArrayList<MethodInfo>();
+
+    /**
+     * Object file being verified
+     */
+    private ObjectFile file;
+
+    /**
+     * Instruction boundaries: true for each address an instruction starts at
+     */
+    private boolean[] instructions;
+
+    /**
+     * Methods, indexed by address
+     */
+    private Map<Integer, MethodInfo> methodsByAddress =
+            new HashMap<Integer, MethodInfo>();
+
+    /**
+     * Errors are only reported when this flag is set. This allows
+     * analysing methods several times while their results are computed.
+     */
+    private boolean report = true;
+
+    public Verifier(ObjectFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Verifies the object file
+     * @return true if no error has been found
+     */
+    public boolean verify() {
+        if (!decode()) {
+            return false;
+        }
+
+        MethodInfo main = methodsByAddress.get(file.mainPc);
+        if (main == null) {
+            error(Diagnostic.MAIN_ENTRY, file.mainPc);
+        } else if (main.parameters != 0) {
+            error(Diagnostic.MAIN_ENTRY_PARAMETERS, file.mainPc);
+        }
+
+        // The number of values returned by a method is only known once
+        // the method has been analysed, and it's required to analyse calls
+        // to that method. Methods are analysed until these numbers are
+        // stable, the final pass reports errors.
+        report = false;
+        boolean changed = true;
+        for (int pass = 0; changed && pass <= methods.size(); pass++) {
+            changed = false;
+            for (MethodInfo method : methods) {
+                int results = analyse(method);
+                if (results >= 0 && results != method.results) {
+                    method.results = results;
+                    changed = true;
+                }
+            }
+        }
+        report = true;
+
+        for (MethodInfo method : methods) {
+            analyse(method);
+        }
+
+        return errors == 0;
+    }
+
+    /**
+     * Reports a verification error.
+     * @param code diagnostic code
+     * @param adr address of the faulty instruction
+     * @param arguments other arguments of the diagnostic message
+     */
+    private void error(int code, int adr, Object... arguments) {
+        if (report) {
+            errors++;
+            Object[] values = new Object[arguments.length + 1];
+            values[0] = adr;
+            System.arraycopy(arguments, 0, values, 1, arguments.length);
+            diagnostics.report(Diagnostic.ERROR, code, 0, 0, values);
+        }
+    }
+
+    /**
+     * Decodes the code section linearly, finding instruction boundaries
+     * and methods.
+     * @return false if the code can't be decoded at all
+     */
+    private boolean decode() {
+        instructions = new boolean[file.codeSize];
+
+        MethodInfo method = null;
+        int pc = 0;
+        while (pc < file.codeSize) {
+            int op = file.get(pc);
+            if (!Code.isOpcode(op)) {
+                error(Diagnostic.INVALID_OPCODE, pc, op);
+                return false;
+            }
+            int size = Code.instructionSize(op);
+            if (pc + size > file.codeSize) {
+                error(Diagnostic.TRUNCATED_INSTRUCTION, pc);
+                return false;
+            }
+
+            if (op == Code.OP_ENTER) {
+                if (method != null) {
+                    method.end = pc;
+                }
+                method = new MethodInfo(pc);
+                method.parameters = file.get(pc + 1);
+                method.locals = file.get(pc + 2);
+                if (method.parameters > method.locals) {
+                    error(Diagnostic.PARAMETERS_OUT_OF_FRAME, pc);
+                }
+                methods.add(method);
+                methodsByAddress.put(pc, method);
+            } else if (method == null) {
+                error(Diagnostic.CODE_OUTSIDE_METHODS, pc);
+                return false;
+            }
+
+            instructions[pc] = true;
+            pc += size;
+        }
+        if (method != null) {
+            method.end = pc;
+        }
+
+        return true;
+    }
+
+    /**
+     * Analyses the expression stack of a method, following every path
+     * from its entry point.
+     * @param method the method to analyse
+     * @return the number of values on the expression stack when the method
+     * returns, or -1 if it can't be computed
+     */
+    private int analyse(MethodInfo method) {
+        int[] depths = new int[method.end - method.address];
+        Arrays.fill(depths, -1);
+        LinkedList<Integer> work = new LinkedList<Integer>();
+
+        method.maxStack = 0;
+        int results = -1;
+
+        int body = method.address + Code.instructionSize(Code.OP_ENTER);
+        if (body >= method.end) {
+            error(Diagnostic.EMPTY_METHOD, method.address);
+            return -1;
+        }
+        merge(method, depths, work, method.address, body, 0);
+
+        while (!work.isEmpty()) {
+            int pc = work.removeFirst();
+            int depth = depths[pc - method.address];
+            int op = file.get(pc);
+
+            int pops = 0;
+            int pushes = 0;
+            int target = -1;
+            boolean fallsThrough = true;
+
+            switch (op) {
+                case Code.OP_LOAD:
+                    checkLocal(method, pc, file.get(pc + 1));
+                    pushes = 1;
+                    break;
+                case Code.OP_LOAD0:
+                case Code.OP_LOAD1:
+                case Code.OP_LOAD2:
+                case Code.OP_LOAD3:
+                    checkLocal(method, pc, op - Code.OP_LOAD0);
+                    pushes = 1;
+                    break;
+                case Code.OP_STORE:
+                    checkLocal(method, pc, file.get(pc + 1));
+                    pops = 1;
+                    break;
+                case Code.OP_STORE0:
+                case Code.OP_STORE1:
+                case Code.OP_STORE2:
+                case Code.OP_STORE3:
+                    checkLocal(method, pc, op - Code.OP_STORE0);
+                    pops = 1;
+                    break;
+                case Code.OP_GETSTATIC:
+                    checkStatic(pc, file.get2(pc + 1));
+                    pushes = 1;
+                    break;
+                case Code.OP_PUTSTATIC:
+                    checkStatic(pc, file.get2(pc + 1));
+                    pops = 1;
+                    break;
+                case Code.OP_GETFIELD:
+                    pops = 1;
+                    pushes = 1;
+                    break;
+                case Code.OP_PUTFIELD:
+                    pops = 2;
+                    break;
+                case Code.OP_CONST0:
+                case Code.OP_CONST1:
+                case Code.OP_CONST2:
+                case Code.OP_CONST3:
+                case Code.OP_CONST4:
+                case Code.OP_CONST5:
+                case Code.OP_CONSTM1:
+                case Code.OP_CONST:
+                case Code.OP_NEW:
+                case Code.OP_READ:
+                case Code.OP_BREAD:
+                    pushes = 1;
+                    break;
+                case Code.OP_ADD:
+                case Code.OP_SUB:
+                case Code.OP_MUL:
+                case Code.OP_DIV:
+                case Code.OP_REM:
+                case Code.OP_SHL:
+                case Code.OP_SHR:
+                case Code.OP_ALOAD:
+                case Code.OP_BALOAD:
+                    pops = 2;
+                    pushes = 1;
+                    break;
+                case Code.OP_NEG:
+                case Code.OP_ARRAYLENGTH:
+                    pops = 1;
+                    pushes = 1;
+                    break;
+                case Code.OP_NEWARRAY:
+                    if (file.get(pc + 1) > 1) {
+                        error(Diagnostic.ELEMENT_SIZE, pc);
+                    }
+                    pops = 1;
+                    pushes = 1;
+                    break;
+                case Code.OP_ASTORE:
+                case Code.OP_BASTORE:
+                    pops = 3;
+                    break;
+                case Code.OP_POP:
+                    pops = 1;
+                    break;
+                case Code.OP_PRINT:
+                case Code.OP_BPRINT:
+                    pops = 2;
+                    break;
+                case Code.OP_JMP:
+                    target = file.get2(pc + 1);
+                    fallsThrough = false;
+                    break;
+                case Code.OP_JEQ:
+                case Code.OP_JNE:
+                case Code.OP_JLT:
+                case Code.OP_JLE:
+                case Code.OP_JGT:
+                case Code.OP_JGE:
+                    target = file.get2(pc + 1);
+                    pops = 2;
+                    break;
+                case Code.OP_CALL:
+                    MethodInfo callee = methodsByAddress.get(
+                            file.get2(pc + 1));
+                    if (callee == null) {
+                        error(Diagnostic.CALL_TARGET, pc);
+                    } else {
+                        pops = callee.parameters;
+                        pushes = callee.results;
+                    }
+                    break;
+                case Code.OP_RETURN:
+                case Code.OP_TRAP:
+                    fallsThrough = false;
+                    break;
+                case Code.OP_EXIT:
+                    break;
+                default:
+                    error(Diagnostic.UNEXPECTED_OPCODE, pc, op);
+                    continue;
+            }
+
+            if (depth < pops) {
+                error(Diagnostic.STACK_UNDERFLOW, pc);
+                continue;
+            }
+            depth = depth - pops + pushes;
+            if (depth > method.maxStack) {
+                method.maxStack = depth;
+            }
+
+            if (op == Code.OP_RETURN) {
+                if (results == -1) {
+                    results = depth;
+                    if (results > 1) {
+                        error(Diagnostic.STACK_NOT_EMPTY, pc);
+                    }
+                } else if (results != depth) {
+                    error(Diagnostic.RETURNED_VALUES, pc);
+                }
+            }
+
+            if (target != -1) {
+                if (target <= method.address || target >= method.end
+                        || !instructions[target]) {
+                    error(Diagnostic.JUMP_TARGET, pc, target);
+                } else {
+                    merge(method, depths, work, pc, target, depth);
+                }
+            }
+
+            if (fallsThrough) {
+                int next = pc + Code.instructionSize(op);
+                if (next >= method.end) {
+                    error(Diagnostic.METHOD_END, pc);
+                } else {
+                    merge(method, depths, work, pc, next, depth);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Records the expression stack depth on entry of an instruction,
+     * queuing the instruction for analysis the first time it's reached.
+     * @param method the method being analysed
+     * @param depths known depths, indexed relatively to the method address
+     * @param work instructions waiting for analysis
+     * @param from address of the instruction leading to the target
+     * @param target address of the reached instruction
+     * @param depth expression stack depth when reaching the target
+     */
+    private void merge(MethodInfo method, int[] depths,
+            LinkedList<Integer> work, int from, int target, int depth) {
+        int i = target - method.address;
+        if (depths[i] == -1) {
+            depths[i] = depth;
+            work.add(target);
+        } else if (depths[i] != depth) {
+            error(Diagnostic.STACK_DEPTH, from, target);
+        }
+    }
+
+    /**
+     * Checks a local variable index against the method frame size
+     */
+    private void checkLocal(MethodInfo method, int pc, int index) {
+        if (index >= method.locals) {
+            error(Diagnostic.LOCAL_INDEX, pc, index);
+        }
+    }
+
+    /**
+     * Checks a static variable index against the data size
+     */
+    private void checkStatic(int pc, int index) {
+        if (index < 0 || index >= file.dataSize) {
+            error(Diagnostic.STATIC_INDEX, pc, index);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.ObjectFile;
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.scanner.Scanner;
+import com.aperigeek.mj.verifier.Verifier;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import junit.framework.Assert;
+
+/**
+ * Compiles test programs, and checks the generated code, for the tests
+ * of the compiler stages
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class CompilerFixture {
+
+    private CompilerFixture() {
+    }
+
+    /**
+     * Compiles a program, which must not contain errors
+     */
+    public static Parser parse(String program) {
+        return parse(program, 0);
+    }
+
+    /**
+     * Compiles a program, which must not contain errors
+     * @param inlineLimit see Parser.inlineLimit
+     */
+    public static Parser parse(String program, int inlineLimit) {
+        Parser parser = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        parser.inlineLimit = inlineLimit;
+        parser.parse();
+        Assert.assertEquals(0, parser.errors);
+        return parser;
+    }
+
+    /**
+     * Writes code to an object file, and reads it back
+     */
+    public static ObjectFile write(Code code) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        code.write(out);
+        return ObjectFile.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * Checks that code passes the verifier
+     * @return the verifier, holding the methods found
+     */
+    public static Verifier verify(Code code) throws IOException {
+        Verifier verifier = new Verifier(write(code));
+        Assert.assertTrue(verifier.verify());
+        return verifier;
+    }
+
+}
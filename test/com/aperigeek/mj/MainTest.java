@@ -0,0 +1,127 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class MainTest extends TestCase {
+
+    private File directory;
+
+    private ByteArrayOutputStream out;
+
+    private ByteArrayOutputStream err;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("microjava", "");
+        directory.delete();
+        new File(directory, "src/sub").mkdirs();
+        source("src/a.mj", "program A { void main() { print(1); } }");
+        source("src/b.mj", "program B { void main() { x = 1; } }");
+        source("src/sub/c.mj", "program C { void main() { print(3); } }");
+        source("src/notes.txt", "not a program");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void source(String name, String program) throws IOException {
+        OutputStream stream = new FileOutputStream(new File(directory, name));
+        try {
+            stream.write(program.getBytes("UTF-8"));
+        } finally {
+            stream.close();
+        }
+    }
+
+    private Main run(String... args) {
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        Main main = new Main(new PrintStream(out, true),
+                new PrintStream(err, true), directory);
+        main.run(args);
+        return main;
+    }
+
+    private List<String> lines(ByteArrayOutputStream stream) {
+        return Arrays.asList(stream.toString().split("\r?\n"));
+    }
+
+    private String path(String name) {
+        return new File(directory, name).getPath();
+    }
+
+    public void testBatch() {
+        Main main = run("-j=2", "src");
+        List<String> results = lines(out);
+
+        // Directories are searched for sources, files are listed in order
+        assertEquals(path("src/a.mj") + ": 0 errors found.", results.get(0));
+        assertEquals(path("src/b.mj") + ": 3 errors found.", results.get(1));
+        assertEquals(path("src/sub/c.mj") + ": 0 errors found.",
+                results.get(2));
+        assertTrue(results.get(3).startsWith(path("src/a.mj") + ": "
+                + new File(path("src/a.mj")).length() + " bytes in "));
+        assertTrue(results.get(6).startsWith(
+                "3 files, 1 with errors, "));
+        assertEquals(7, results.size());
+
+        assertEquals(path("src/b.mj")
+                + ": Line 1, Col 27: x can't be resolved to a name",
+                lines(err).get(0));
+        assertEquals(3, main.errors);
+        assertEquals(Arrays.asList(path("src/a.obj"), path("src/sub/c.obj")),
+                main.outputs);
+        assertFalse(new File(path("src/b.obj")).exists());
+    }
+
+    public void testDeterministicOutput() {
+        run("-j=1", "src");
+        String sequential = out.toString() + err.toString();
+        for (int i = 0; i < 3; i++) {
+            run("-j=3", "src");
+            // Timings aside, the output doesn't depend on the jobs
+            assertEquals(withoutTimings(sequential),
+                    withoutTimings(out.toString() + err.toString()));
+        }
+    }
+
+    private List<String> withoutTimings(String output) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : output.split("\r?\n")) {
+            lines.add(line.replaceAll(" in [0-9.,]+ ms .*", ""));
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class CodeTest extends TestCase {
+
+    public void testBufferGrowth() {
+        Code code = new Code();
+        int size = Code.BUFFER_SIZE + 10;
+        for (int i = 0; i < size; i++) {
+            code.put(i);
+        }
+        assertEquals(size, code.pc);
+        for (int i = 0; i < size; i++) {
+            assertEquals(i & 0xff, code.get(i));
+        }
+    }
+
+    public void testWriteTwice() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        code.write(first);
+        // The header isn't left in the code
+        assertEquals(5, code.pc);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        code.write(second);
+        assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.scanner.Scanner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class DebugInfoTest extends TestCase {
+
+    private DebugInfo writeAndRead(DebugInfo info) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        info.write(out);
+        return DebugInfo.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testMethodTable() throws IOException {
+        DebugInfo info = new DebugInfo();
+        info.addMethod("foo", 0);
+        info.addMethod("bar", 12);
+        info.addMethod("main", 40);
+
+        info = writeAndRead(info);
+
+        assertEquals("foo", info.methodAt(0));
+        assertEquals("foo", info.methodAt(11));
+        assertEquals("bar", info.methodAt(12));
+        assertEquals("main", info.methodAt(1000));
+    }
+
+    public void testLineTable() throws IOException {
+        DebugInfo info = new DebugInfo();
+        info.addLine(0, 3);
+        info.addLine(3, 4);
+        info.addLine(300, 2);
+        info.addLine(310, 2);
+        info.addLine(400, 1000);
+
+        info = writeAndRead(info);
+
+        assertEquals(3, info.lineAt(0));
+        assertEquals(3, info.lineAt(2));
+        assertEquals(4, info.lineAt(3));
+        assertEquals(4, info.lineAt(299));
+        assertEquals(2, info.lineAt(310));
+        assertEquals(1000, info.lineAt(400));
+    }
+
+    public void testCompiledProgram() {
+        String program = "program P {"
+                + " void foo() { print(1); }"
+                + " void main() { foo(); }"
+                + "}";
+        Parser parser = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        parser.code.debug = new DebugInfo();
+        parser.parse();
+
+        DebugInfo info = parser.code.debug;
+        assertEquals(2, info.methodNames.size());
+        assertEquals("foo", info.methodAt(0));
+        assertEquals("foo", info.methodAt(parser.code.mainPc - 1));
+        assertEquals("main", info.methodAt(parser.code.mainPc));
+    }
+
+    public void testCompiledLines() {
+        String program = "program P\n"
+                + "{\n"
+                + "  void main()\n"
+                + "    int x;\n"
+                + "  {\n"
+                + "    x = 1;\n"
+                + "    print(x);\n"
+                + "  }\n"
+                + "}\n";
+        Parser parser = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        parser.code.debug = new DebugInfo();
+        parser.parse();
+
+        DebugInfo info = parser.code.debug;
+        // enter, then const and store, then load, const and print
+        assertEquals("main", info.methodAt(0));
+        assertEquals(3, info.lineAt(0));
+        assertEquals(6, info.lineAt(3));
+        assertEquals(6, info.lineAt(9));
+        assertEquals(7, info.lineAt(10));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class HistogramTest extends TestCase {
+
+    /**
+     * foo: enter, const1, print(width 0), exit, return
+     * main: enter, call foo, call foo, exit, return
+     */
+    private ObjectFile createFile() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_CONST1);
+        code.put(Code.OP_CONST0);
+        code.put(Code.OP_PRINT);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+        code.mainPc = code.pc;
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_CALL);
+        code.put2(0);
+        code.put(Code.OP_CALL);
+        code.put2(0);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        code.write(out);
+        return ObjectFile.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testCounts() throws IOException {
+        DebugInfo debug = new DebugInfo();
+        debug.addMethod("foo", 0);
+        debug.addMethod("main", 8);
+        Histogram histogram = new Histogram(createFile(), debug);
+
+        assertEquals(2, histogram.methods.size());
+        assertEquals("foo", histogram.methods.get(0));
+        assertEquals("main", histogram.methods.get(1));
+        assertEquals(1, histogram.counts.get(0)[Code.OP_PRINT]);
+        assertEquals(0, histogram.counts.get(0)[Code.OP_CALL]);
+        assertEquals(2, histogram.counts.get(1)[Code.OP_CALL]);
+        assertEquals(2, histogram.total[Code.OP_ENTER]);
+        assertEquals(2, histogram.total[Code.OP_RETURN]);
+    }
+
+    public void testCsv() throws IOException {
+        Histogram histogram = new Histogram(createFile(), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        histogram.writeCsv(new PrintStream(out, true));
+        String csv = out.toString().replace("\r\n", "\n");
+
+        assertTrue(csv.startsWith("method,opcode,count,bytes\n"));
+        // Without debug informations, methods are named by address
+        assertTrue(csv.contains("\n@0,print,1,1\n"));
+        assertTrue(csv.contains("\n@8,call,2,6\n"));
+        assertTrue(csv.contains("\n*,enter,2,6\n"));
+        assertFalse(csv.contains(",trap,"));
+    }
+
+}
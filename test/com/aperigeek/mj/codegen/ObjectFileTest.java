@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.codegen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class ObjectFileTest extends TestCase {
+
+    private Code createCode() {
+        Code code = new Code();
+        code.dataSize = 3;
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_CONST);
+        code.put4(-123456);
+        code.put(Code.OP_PUTSTATIC);
+        code.put2(2);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+        return code;
+    }
+
+    private void assertContent(ObjectFile file) {
+        assertEquals(13, file.codeSize);
+        assertEquals(3, file.dataSize);
+        assertEquals(0, file.mainPc);
+        assertEquals(Code.OP_ENTER, file.get(0));
+        assertEquals(-123456, file.get4(4));
+        assertEquals(2, file.get2(9));
+        assertEquals(Code.OP_RETURN, file.get(12));
+    }
+
+    public void testRead() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        createCode().write(out);
+
+        assertContent(ObjectFile.read(
+                new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    public void testMap() throws IOException {
+        File file = File.createTempFile("microjava", ".obj");
+        try {
+            createCode().write(new FileOutputStream(file));
+
+            assertContent(ObjectFile.map(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
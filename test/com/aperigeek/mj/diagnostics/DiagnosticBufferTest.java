@@ -0,0 +1,70 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.diagnostics;
+
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.scanner.Scanner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class DiagnosticBufferTest extends TestCase {
+
+    public void testParserErrors() {
+        String program = "program P {"
+                + " void main() int x; { x = y; x = 99999999999; }"
+                + "}";
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer();
+        Scanner scanner = new Scanner(
+                new ByteArrayInputStream(program.getBytes()));
+        scanner.diagnostics = diagnostics;
+        Parser parser = new Parser(scanner);
+        parser.diagnostics = diagnostics;
+        parser.parse();
+
+        Diagnostic unresolved = diagnostics.get(0);
+        assertEquals(Diagnostic.ERROR, unresolved.severity);
+        assertEquals(Diagnostic.UNRESOLVED_NAME, unresolved.code);
+        assertEquals(1, unresolved.line);
+        assertEquals("y can't be resolved to a name", unresolved.message());
+
+        Diagnostic number = null;
+        for (int i = 0; i < diagnostics.size(); i++) {
+            if (diagnostics.get(i).code == Diagnostic.INVALID_NUMBER) {
+                number = diagnostics.get(i);
+            }
+        }
+        assertEquals("99999999999", number.arguments[0]);
+        // The scanner error isn't counted by the parser
+        assertEquals(parser.errors + 1, diagnostics.errors());
+    }
+
+    public void testLimit() {
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer(2);
+        for (int i = 1; i <= 5; i++) {
+            diagnostics.report(Diagnostic.ERROR, Diagnostic.ALREADY_DECLARED,
+                    i, 3, "x" + i);
+        }
+        diagnostics.report(Diagnostic.WARNING, Diagnostic.BODY_END, 0, 0);
+        assertEquals(2, diagnostics.size());
+        assertEquals(5, diagnostics.errors());
+        assertEquals(1, diagnostics.warnings());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        diagnostics.print(new PrintStream(out, true));
+        assertEquals("Line 1, Col 3: x1 already declared\n"
+                + "Line 2, Col 3: x2 already declared\n"
+                + "4 more diagnostics not shown\n",
+                out.toString().replace("\r\n", "\n"));
+    }
+
+}
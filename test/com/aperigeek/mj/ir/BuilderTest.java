@@ -0,0 +1,97 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class BuilderTest extends TestCase {
+
+    private static final String PROGRAM = "program P int g; {"
+            + " int max(int a, int b) {"
+            + "  if (a > b) return a; else return b;"
+            + " }"
+            + " void main() int i; {"
+            + "  i = 0;"
+            + "  while (i < 10) { g = max(g, i); i = i + 1; }"
+            + "  print(g);"
+            + " }"
+            + "}";
+
+    public void testBuild() {
+        Code code = CompilerFixture.parse(PROGRAM).code;
+        Program program = new Builder(code).build();
+
+        assertEquals(2, program.methods.size());
+        Method max = program.methods.get(0);
+        Method main = program.methods.get(1);
+        assertSame(main, program.main);
+        assertEquals(2, max.parameters);
+        assertEquals(1, main.locals);
+        assertEquals(1, max.results);
+        assertEquals(0, main.results);
+
+        // i = 0 | i < 10 | loop body | print
+        assertEquals(4, main.blocks.size());
+        Block condition = main.blocks.get(1);
+        Block body = main.blocks.get(2);
+        Block exit = main.blocks.get(3);
+        assertEquals(Code.OP_JGE, condition.last().opcode);
+        assertSame(exit, condition.last().target);
+        assertSame(body, condition.next);
+        assertEquals(Code.OP_JMP, body.last().opcode);
+        assertSame(condition, body.last().target);
+
+        for (Instruction instruction : body.instructions) {
+            if (instruction.opcode == Code.OP_CALL) {
+                assertSame(max, instruction.method);
+            }
+        }
+    }
+
+    public void testLower() throws IOException {
+        Code code = CompilerFixture.parse(PROGRAM).code;
+        Code lowered = new Lowering(new Builder(code).build(), false).lower();
+
+        CompilerFixture.verify(lowered);
+        // Short forms are used for loads, stores and small constants
+        assertTrue(lowered.pc < code.pc);
+
+        // Lowering is stable
+        Code again = new Lowering(new Builder(lowered).build(), false)
+                .lower();
+        assertEquals(lowered.pc, again.pc);
+        for (int i = 0; i < lowered.pc; i++) {
+            assertEquals(lowered.get(i), again.get(i));
+        }
+    }
+
+    public void testLargeProgram() throws IOException {
+        // Jumps and calls beyond the first 32 KB of code
+        StringBuilder program = new StringBuilder("program P {");
+        for (int i = 0; i < 1000; i++) {
+            program.append(" void m" + i + "() int i; {"
+                    + " i = 0; while (i < 10) { print(i); i = i + 1; } }");
+        }
+        program.append(" void main() { m999(); } }");
+        Code code = CompilerFixture.parse(program.toString()).code;
+        assertTrue(code.pc > 32768);
+
+        Program ir = new Builder(code).build();
+        assertEquals(1001, ir.methods.size());
+        Method last = ir.methods.get(999);
+        assertEquals(4, last.blocks.size());
+        CompilerFixture.verify(new Lowering(ir, false).lower());
+    }
+
+}
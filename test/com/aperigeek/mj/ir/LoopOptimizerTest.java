@@ -0,0 +1,107 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.parser.Parser;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class LoopOptimizerTest extends TestCase {
+
+    private Program optimize(String program) throws IOException {
+        Parser parser = CompilerFixture.parse(program);
+        Program ir = new Builder(parser.code).build();
+        new LoopOptimizer(ir).optimize();
+        CompilerFixture.verify(new Lowering(ir, false).lower());
+        return ir;
+    }
+
+    /**
+     * Counts the instructions of the loop of a method, made of the blocks
+     * between the loop header and the block jumping back to it
+     */
+    private int countInLoop(Method method, int opcode) {
+        int count = 0;
+        boolean inLoop = false;
+        for (Block block : method.blocks) {
+            if (block.instructions.size() > 0
+                    && block.last().opcode == Code.OP_JGE) {
+                inLoop = true;
+            }
+            if (inLoop) {
+                for (Instruction instruction : block.instructions) {
+                    if (instruction.opcode == opcode) {
+                        count++;
+                    }
+                }
+            }
+            if (block.last() != null && block.last().opcode == Code.OP_JMP) {
+                inLoop = false;
+            }
+        }
+        return count;
+    }
+
+    public void testInvariants() throws IOException {
+        Program program = optimize("program P"
+                + " int scale;"
+                + " {"
+                + " void main() int[] a; int i, s; {"
+                + "  a = new int[10]; scale = 2;"
+                + "  i = 0; s = 0;"
+                + "  while (i < len(a)) {"
+                + "   s = s + scale * len(a); i = i + 1;"
+                + "  }"
+                + "  print(s);"
+                + " }"
+                + "}");
+
+        Method main = program.main;
+        // len(a), tested in the condition, then scale * len(a)
+        assertEquals(0, countInLoop(main, Code.OP_ARRAYLENGTH));
+        assertEquals(0, countInLoop(main, Code.OP_GETSTATIC));
+        assertEquals(0, countInLoop(main, Code.OP_MUL));
+        assertEquals(5, main.locals);
+    }
+
+    public void testTrappingExpressions() throws IOException {
+        Program program = optimize("program P"
+                + " class C { int n; }"
+                + " C c;"
+                + " {"
+                + " void main() int i, s; {"
+                + "  i = 0; s = 0;"
+                + "  while (i < 10) { s = s + c.n; i = i + 1; }"
+                + "  print(s);"
+                + " }"
+                + "}");
+
+        // c is null, c.n must only be evaluated if the loop runs
+        assertEquals(1, countInLoop(program.main, Code.OP_GETFIELD));
+    }
+
+    public void testInductionVariables() throws IOException {
+        Program program = optimize("program P {"
+                + " void main() int[] a; int i; {"
+                + "  a = new int[10]; i = 0;"
+                + "  while (i < 3) {"
+                + "   a[i * 3] = 1; a[i * 3 + 1] = 2; a[i * 3 + 2] = 3;"
+                + "   i = i + 1;"
+                + "  }"
+                + " }"
+                + "}");
+
+        assertEquals(0, countInLoop(program.main, Code.OP_MUL));
+    }
+
+}
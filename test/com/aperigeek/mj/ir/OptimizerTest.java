@@ -0,0 +1,75 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.ir;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.parser.Parser;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class OptimizerTest extends TestCase {
+
+    private Program optimize(String program) throws IOException {
+        Parser parser = CompilerFixture.parse(program);
+        Program ir = new Builder(parser.code).build();
+        new Optimizer(ir).optimize();
+        CompilerFixture.verify(new Lowering(ir, false).lower());
+        return ir;
+    }
+
+    private int count(Method method, int opcode) {
+        int count = 0;
+        for (Block block : method.blocks) {
+            for (Instruction instruction : block.instructions) {
+                if (instruction.opcode == opcode) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void testConstants() throws IOException {
+        Program program = optimize("program P {"
+                + " void main() int x, y; {"
+                + "  x = 3;"
+                + "  y = x * 4;"
+                + "  if (y > 10) print(y); else print(0);"
+                + " }"
+                + "}");
+
+        Method main = program.main;
+        assertEquals(0, count(main, Code.OP_STORE));
+        assertEquals(0, count(main, Code.OP_LOAD));
+        assertEquals(0, count(main, Code.OP_JLE));
+        // Only the taken branch is left
+        assertEquals(1, count(main, Code.OP_PRINT));
+    }
+
+    public void testUnknownValues() throws IOException {
+        Program program = optimize("program P {"
+                + " void main() int x, y; {"
+                + "  read(x);"
+                + "  y = 1;"
+                + "  while (x > 0) { y = y * 2; x = x - 1; }"
+                + "  print(y);"
+                + " }"
+                + "}");
+
+        // y isn't constant in the loop, nothing can be removed
+        Method main = program.main;
+        assertEquals(1, count(main, Code.OP_READ));
+        assertEquals(1, count(main, Code.OP_JLE));
+        assertEquals(4, count(main, Code.OP_STORE));
+    }
+
+}
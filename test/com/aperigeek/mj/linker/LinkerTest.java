@@ -0,0 +1,199 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.linker;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.scanner.Scanner;
+import com.aperigeek.mj.symtab.Struct;
+import com.aperigeek.mj.symtab.SymObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class LinkerTest extends TestCase {
+
+    private Map<String, Struct> classes = new HashMap<String, Struct>();
+
+    private int inlineLimit;
+
+    private Parser parse(String program, boolean unit,
+            List<SymObject> imports) {
+        Parser parser = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        parser.unit = unit;
+        parser.imports = imports;
+        parser.inlineLimit = inlineLimit;
+        parser.parse();
+        assertEquals(0, parser.errors);
+        return parser;
+    }
+
+    /**
+     * Compiles a unit, and reads it back from its file
+     */
+    private Unit compile(String program, Unit... uses) throws IOException {
+        List<SymObject> imports = new ArrayList<SymObject>();
+        for (Unit use : uses) {
+            imports.addAll(use.exports);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Unit(parse(program, true, imports)).write(out);
+        return Unit.read(new ByteArrayInputStream(out.toByteArray()),
+                classes);
+    }
+
+    private byte[] bytes(Code code) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        code.write(out);
+        return out.toByteArray();
+    }
+
+    public void testSingleUnit() throws IOException {
+        String program = "program P"
+                + " int a; class C { int x; } int b;"
+                + " {"
+                + "  int inc(int v) { return v + 1; }"
+                + "  void main() C c; {"
+                + "   c = new C; c.x = inc(2); a = c.x; b = inc(a);"
+                + "   while (a < 10) a = inc(a);"
+                + "   print(b);"
+                + "  }"
+                + " }";
+
+        Code linked = new Linker().link(Arrays.asList(compile(program)));
+        Code code = parse(program, false, new ArrayList<SymObject>()).code;
+        assertTrue(Arrays.equals(bytes(code), bytes(linked)));
+    }
+
+    public void testRelocation() throws IOException {
+        Unit lib = compile("program Lib"
+                + " class Point { int x; Point next; }"
+                + " int count;"
+                + " {"
+                + "  int twice(int v) { return 2 * v; }"
+                + "  Point make(int x) Point p;"
+                + "   { count = count + 1; p = new Point; p.x = x; return p; }"
+                + " }");
+        Unit main = compile("program Main"
+                + " int total;"
+                + " {"
+                + "  void main() Point p;"
+                + "   { p = make(twice(3)); total = p.x; count = 0; }"
+                + " }", lib);
+        assertEquals(Arrays.asList("count"), main.imports);
+
+        Linker linker = new Linker();
+        Code code = linker.link(Arrays.asList(main, lib));
+        assertEquals(0, linker.errors);
+        assertEquals(2, code.dataSize);
+        assertEquals(0, code.mainPc);
+
+        // main: total is the first variable, count comes from lib
+        List<Integer> statics = new ArrayList<Integer>();
+        List<Integer> calls = new ArrayList<Integer>();
+        int pc = 0;
+        while (pc < main.code.pc) {
+            int op = code.get(pc);
+            if (op == Code.OP_PUTSTATIC) {
+                statics.add(code.get2(pc + 1));
+            } else if (op == Code.OP_CALL) {
+                calls.add(code.get2(pc + 1));
+            }
+            pc += Code.instructionSize(op);
+        }
+        assertEquals(Arrays.asList(0, 1), statics);
+        // twice is called first, both methods are placed after main
+        int base = main.code.pc;
+        assertEquals(Arrays.asList(base + lib.exports.get(2).address,
+                base + lib.exports.get(3).address), calls);
+    }
+
+    public void testChangedDeclarations() throws IOException {
+        String lib = "program Lib"
+                + " class Point { int x; int y; }"
+                + " final int MAX = 10;"
+                + " {"
+                + "  int twice(int v) { return 2 * v; }"
+                + " }";
+        String main = "program Main"
+                + " {"
+                + "  void main() Point p;"
+                + "   { p = new Point; p.y = twice(MAX); print(p.x); }"
+                + " }";
+        Unit main1 = compile(main, compile(lib));
+
+        // Same declarations, in another order
+        Unit lib2 = compile("program Lib"
+                + " final int MAX = 10;"
+                + " class Point { int x; int y; }"
+                + " {"
+                + "  int twice(int v) { return v + v; }"
+                + " }");
+        Linker linker = new Linker();
+        assertNotNull(linker.link(Arrays.asList(main1, lib2)));
+
+        Unit lib3 = compile("program Lib"
+                + " class Point { int y; int x; }"
+                + " final int MAX = 10;"
+                + " {"
+                + "  int twice(int v, int w) { return v + w; }"
+                + " }");
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer();
+        linker = new Linker();
+        linker.diagnostics = diagnostics;
+        assertNull(linker.link(Arrays.asList(main1, lib3)));
+        assertEquals(2, linker.errors);
+        assertEquals(Diagnostic.CHANGED_IN_UNITS, diagnostics.get(0).code);
+        assertEquals("Point", diagnostics.get(0).arguments[0]);
+        assertEquals("twice", diagnostics.get(1).arguments[0]);
+    }
+
+    public void testInliningWithImports() throws IOException {
+        inlineLimit = 20;
+        StringBuilder lib = new StringBuilder("program Lib {");
+        for (int i = 0; i < 1000; i++) {
+            lib.append(" int m" + i + "(int v) { return v + " + i + "; }");
+        }
+        lib.append(" }");
+        Unit libUnit = compile(lib.toString());
+        Unit main = compile("program Main {"
+                + " int twice(int v) { return 2 * v; }"
+                + " void main() { print(m999(twice(1))); }"
+                + "}", libUnit);
+
+        // twice is inlined, the code of m999 is in the other unit
+        assertEquals(Arrays.asList("m999"), main.callees);
+        Linker linker = new Linker();
+        Code code = linker.link(Arrays.asList(main, libUnit));
+        assertEquals(0, linker.errors);
+        CompilerFixture.verify(code);
+    }
+
+    public void testUndefinedMethod() throws IOException {
+        Unit lib = compile("program Lib { void foo() { } }");
+        Unit main = compile("program Main { void main() { foo(); } }", lib);
+
+        Linker linker = new Linker();
+        assertNull(linker.link(Arrays.asList(main)));
+        assertEquals(1, linker.errors);
+    }
+
+}
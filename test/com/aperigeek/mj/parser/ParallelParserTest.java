@@ -0,0 +1,121 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.parser;
+
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.scanner.Scanner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class ParallelParserTest extends TestCase {
+
+    private static final String PROGRAM = "program P"
+            + " final int N = 10;"
+            + " class Point { int x; int y; }"
+            + " Point p;"
+            + " {"
+            + " int max(int a, int b) { if (a > b) return a; return b; }"
+            + " int count(int n, int acc) {"
+            + "  if (n == 0) return acc;"
+            + "  return count(n - 1, acc + 1);"
+            + " }"
+            + " void move(int dx) { p.x = max(p.x + dx, 0); }"
+            + " void main() int i; {"
+            + "  p = new Point; i = 0;"
+            + "  while (i < N) { move(i); i = i + 1; }"
+            + "  print(count(p.x, 0));"
+            + " }"
+            + "}";
+
+    private byte[] write(Code code) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        code.write(out);
+        return out.toByteArray();
+    }
+
+    private byte[] sequential(String program, int inlineLimit)
+            throws IOException {
+        Parser parser = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        parser.inlineLimit = inlineLimit;
+        parser.parse();
+        assertEquals(0, parser.errors);
+        return write(parser.code);
+    }
+
+    private ParallelParser parallel(String program, int inlineLimit) {
+        return parallel(program, inlineLimit, null);
+    }
+
+    private ParallelParser parallel(String program, int inlineLimit,
+            FragmentCache cache) {
+        ParallelParser parser = new ParallelParser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())), 4);
+        parser.inlineLimit = inlineLimit;
+        parser.cache = cache;
+        parser.parse();
+        return parser;
+    }
+
+    public void testIdenticalCode() throws IOException {
+        ParallelParser parser = parallel(PROGRAM, 0);
+        assertEquals(0, parser.errors);
+        assertTrue(Arrays.equals(sequential(PROGRAM, 0), write(parser.code)));
+    }
+
+    public void testIdenticalInlinedCode() throws IOException {
+        ParallelParser parser = parallel(PROGRAM, 64);
+        assertEquals(0, parser.errors);
+        assertTrue(Arrays.equals(sequential(PROGRAM, 64),
+                write(parser.code)));
+    }
+
+    public void testIncremental() throws IOException {
+        FragmentCache cache = new FragmentCache();
+        assertEquals(4, parallel(PROGRAM, 0, cache).compiled);
+
+        // The cache is kept in a file between compilations
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.write(out);
+        cache = FragmentCache.read(
+                new ByteArrayInputStream(out.toByteArray()));
+
+        String program = PROGRAM.replace("p.x + dx, 0", "p.x + dx, 1");
+        ParallelParser parser = parallel(program, 0, cache);
+        assertEquals(1, parser.compiled);
+        assertTrue(Arrays.equals(sequential(program, 0), write(parser.code)));
+
+        // Methods using the class are compiled again
+        program = program.replace("int y;", "int y; int z;");
+        parser = parallel(program, 0, cache);
+        assertEquals(2, parser.compiled);
+        assertTrue(Arrays.equals(sequential(program, 0), write(parser.code)));
+    }
+
+    public void testErrors() {
+        // bar is declared after foo, it can't be called from foo
+        String program = "program P {"
+                + " void foo() { bar(); }"
+                + " void bar() { }"
+                + " void main() { foo(); }"
+                + "}";
+        Parser sequential = new Parser(new Scanner(
+                new ByteArrayInputStream(program.getBytes())));
+        sequential.parse();
+        assertTrue(sequential.errors > 0);
+
+        assertEquals(sequential.errors, parallel(program, 0).errors);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.parser;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.verifier.Verifier;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class ParserTest extends TestCase {
+
+    private int count(Code code, int from, int to, int opcode) {
+        int count = 0;
+        int pc = from;
+        while (pc < to) {
+            if (code.get(pc) == opcode) {
+                count++;
+            }
+            pc += Code.instructionSize(code.get(pc));
+        }
+        return count;
+    }
+
+    public void testInlining() throws IOException {
+        String program = "program P {"
+                + " int max(int a, int b) int m;"
+                + "  { m = a; if (b > a) m = b; return m; }"
+                + " void main() int x; {"
+                + "  x = max(1, 2);"
+                + "  print(max(x, 3));"
+                + " }"
+                + "}";
+
+        Parser parser = CompilerFixture.parse(program);
+        int mainPc = parser.code.mainPc;
+        assertEquals(2, count(parser.code, mainPc, parser.code.pc,
+                Code.OP_CALL));
+
+        parser = CompilerFixture.parse(program, 64);
+        mainPc = parser.code.mainPc;
+        assertEquals(0, count(parser.code, mainPc, parser.code.pc,
+                Code.OP_CALL));
+
+        Verifier verifier = CompilerFixture.verify(parser.code);
+        // main frame: x, then a, b and m for the inlined bodies
+        assertEquals(4, verifier.methods.get(1).locals);
+    }
+
+    public void testTransitiveInlining() throws IOException {
+        String program = "program P {"
+                + " void foo() { print(1); }"
+                + " void bar() { foo(); }"
+                + " void main() { bar(); }"
+                + "}";
+
+        Parser parser = CompilerFixture.parse(program, 64);
+        int mainPc = parser.code.mainPc;
+        // foo is inlined in bar, which is then a leaf and inlined in main
+        assertEquals(0, count(parser.code, mainPc, parser.code.pc,
+                Code.OP_CALL));
+        CompilerFixture.verify(parser.code);
+    }
+
+    public void testTransitiveInliningLocals() throws IOException {
+        String program = "program P {"
+                + " int g(int x) int y; { y = x + 1; return y; }"
+                + " int f(int a) int b; { b = g(a); return b * 2; }"
+                + " void main() int r; { r = f(3); print(r); }"
+                + "}";
+
+        Parser parser = CompilerFixture.parse(program, 40);
+        int mainPc = parser.code.mainPc;
+        assertEquals(0, count(parser.code, mainPc, parser.code.pc,
+                Code.OP_CALL));
+
+        Verifier verifier = CompilerFixture.verify(parser.code);
+        // f frame: a and b, then x and y for the body of g
+        assertEquals(4, verifier.methods.get(1).locals);
+        // main frame: r, then the whole frame of f
+        assertEquals(5, verifier.methods.get(2).locals);
+    }
+
+    public void testConstantFolding() throws IOException {
+        String program = "program P {"
+                + " void main() int x; { x = 2; print(x * 7); print(3 * 4); }"
+                + "}";
+
+        Parser parser = CompilerFixture.parse(program);
+        CompilerFixture.verify(parser.code);
+        int mainPc = parser.code.mainPc;
+        // x * 7 is computed at run time, 3 * 4 is folded
+        assertEquals(1, count(parser.code, mainPc, parser.code.pc,
+                Code.OP_MUL));
+        boolean folded = false;
+        int pc = mainPc;
+        while (pc < parser.code.pc) {
+            int op = parser.code.get(pc);
+            if (op == Code.OP_CONST && parser.code.get4(pc + 1) == 12) {
+                folded = true;
+            }
+            pc += Code.instructionSize(op);
+        }
+        assertTrue(folded);
+    }
+
+    public void testBuiltinMethods() throws IOException {
+        String program = "program P {"
+                + " void main() int[] a; char c; {"
+                + "  a = new int[3]; c = chr(65);"
+                + "  print(len(a)); print(ord(c)); print(c);"
+                + " }"
+                + "}";
+
+        CompilerFixture.verify(CompilerFixture.parse(program).code);
+    }
+
+    public void testGlobalAfterClass() throws IOException {
+        String program = "program P"
+                + " int a; class C { int x; int y; } int b;"
+                + " { void main() { a = 1; b = 2; print(a + b); } }";
+
+        Parser parser = CompilerFixture.parse(program);
+        CompilerFixture.verify(parser.code);
+        // The fields of C don't take static addresses
+        assertEquals(2, parser.code.dataSize);
+        List<Integer> stores = new ArrayList<Integer>();
+        int pc = parser.code.mainPc;
+        while (pc < parser.code.pc) {
+            int op = parser.code.get(pc);
+            if (op == Code.OP_PUTSTATIC) {
+                stores.add(parser.code.get2(pc + 1));
+            }
+            pc += Code.instructionSize(op);
+        }
+        assertEquals(Arrays.asList(0, 1), stores);
+    }
+
+    public void testTailCall() throws IOException {
+        String program = "program P {"
+                + " int count(int n, int acc) {"
+                + "  if (n == 0) return acc;"
+                + "  return count(n - 1, acc + 1);"
+                + " }"
+                + " int fact(int n) {"
+                + "  if (n == 0) return 1;"
+                + "  return n * fact(n - 1);"
+                + " }"
+                + " void main() { print(count(10, 0)); print(fact(5)); }"
+                + "}";
+
+        Parser parser = CompilerFixture.parse(program);
+        Verifier verifier = CompilerFixture.verify(parser.code);
+        int countPc = verifier.methods.get(0).address;
+        int factPc = verifier.methods.get(1).address;
+        int mainPc = verifier.methods.get(2).address;
+
+        assertEquals(0, count(parser.code, countPc, factPc, Code.OP_CALL));
+        // One jump skips the missing else branch, the other one restarts
+        assertEquals(2, count(parser.code, countPc, factPc, Code.OP_JMP));
+        // fact isn't tail recursive
+        assertEquals(1, count(parser.code, factPc, mainPc, Code.OP_CALL));
+    }
+
+    public void testSilentParsing() {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            CompilerFixture.parse("program P {"
+                    + " int add(int a, int b) { return a + b; }"
+                    + " void main() { print(add(1, 2)); }"
+                    + "}");
+        } finally {
+            System.setOut(out);
+        }
+        // Results are printed by Main, the parser itself prints nothing
+        assertEquals("", printed.toString());
+    }
+
+}
@@ -158,4 +158,41 @@ public class ScannerTest extends TestCase {
         assertEquals(scanner.next().kind, Token.EOF);
     }
 
+    public void testInputLargerThanBuffer() {
+        StringBuilder program = new StringBuilder();
+        while (program.length() < 3 * Scanner.BUFFER_SIZE) {
+            program.append("ident ");
+            program.append(program.length());
+            program.append('\n');
+        }
+        Scanner scanner = new Scanner(new ByteArrayInputStream(
+                program.toString().getBytes()));
+
+        int line = 1;
+        Token token = scanner.next();
+        while (token.kind != Token.EOF) {
+            assertEquals(token.kind, Token.IDENT);
+            assertEquals(token.line, line);
+            token = scanner.next();
+            assertEquals(token.kind, Token.NUMBER);
+            assertEquals(token.line, line);
+            token = scanner.next();
+            line++;
+        }
+        assertTrue(line > 1000);
+    }
+
+    public void testInvalidCharacter() {
+        String program = "foo : bar";
+        Scanner scanner = new Scanner(new ByteArrayInputStream(program.getBytes()));
+
+        assertEquals(scanner.next().kind, Token.IDENT);
+        Token token = scanner.next();
+        assertEquals(token.kind, Token.NONE);
+        assertEquals(token.col, 5);
+        // The invalid character is skipped
+        assertEquals(scanner.next().kind, Token.IDENT);
+        assertEquals(scanner.next().kind, Token.EOF);
+    }
+
 }
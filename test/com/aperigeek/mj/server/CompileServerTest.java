@@ -0,0 +1,207 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.server;
+
+import com.aperigeek.mj.Main;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class CompileServerTest extends TestCase {
+
+    private File directory;
+
+    private File keyFile;
+
+    private CompileServer server;
+
+    private Thread thread;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("microjava", "");
+        directory.delete();
+        directory.mkdir();
+        keyFile = new File(directory, "key");
+        start();
+    }
+
+    /**
+     * Starts a server, and waits for its key file to be written
+     */
+    private void start() throws Exception {
+        server = new CompileServer(0, keyFile);
+        thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+        for (int i = 0; i < 100 && keyFile.length() == 0; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (thread.isAlive()) {
+            request(key(), "-stop");
+            thread.join(5000);
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private String key() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(keyFile), "UTF-8"));
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void source(String name, String program) throws IOException {
+        OutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(program.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sends a request from the test directory
+     * @return the response lines
+     */
+    private List<String> request(String key, String... args)
+            throws IOException {
+        Socket socket = new Socket(InetAddress.getByName(null),
+                server.port());
+        try {
+            Writer request = new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8");
+            request.write(key + "\n");
+            request.write(directory.getPath() + "\n");
+            for (String arg : args) {
+                request.write(arg + "\n");
+            }
+            request.write("\n");
+            request.flush();
+
+            List<String> lines = new ArrayList<String>();
+            BufferedReader response = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line = response.readLine();
+            while (line != null) {
+                lines.add(line);
+                line = response.readLine();
+            }
+            return lines;
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testCompile() throws IOException {
+        source("P.mj", "program P { void main() { print(1); } }");
+
+        // Relative file names are resolved from the client directory
+        List<String> lines = request(key(), "P.mj");
+        File output = new File(directory, "P.obj");
+        assertTrue(output.exists());
+        assertTrue(lines.contains("1 0 errors found."));
+        assertTrue(lines.contains("3 " + output.getPath()));
+    }
+
+    public void testErrors() throws IOException {
+        source("E.mj", "program E { void main() { x = 1; } }");
+
+        List<String> lines = request(key(), "E.mj");
+        assertTrue(lines.contains("1 3 errors found."));
+        assertTrue(lines.contains(
+                "2 Line 1, Col 27: x can't be resolved to a name"));
+        assertFalse(new File(directory, "E.obj").exists());
+    }
+
+    public void testInvalidKey() throws IOException {
+        source("P.mj", "program P { void main() { print(1); } }");
+
+        List<String> lines = request("0123", "P.mj");
+        assertEquals(1, lines.size());
+        assertEquals("2 Invalid compile server key", lines.get(0));
+        assertFalse(new File(directory, "P.obj").exists());
+    }
+
+    public void testStop() throws Exception {
+        List<String> lines = request(key(), "-stop");
+        assertEquals("1 Compile server stopped", lines.get(0));
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertFalse(keyFile.exists());
+    }
+
+    public void testStaleKeyFile() throws Exception {
+        request(key(), "-stop");
+        thread.join(5000);
+        // Left by a killed server
+        OutputStream out = new FileOutputStream(keyFile);
+        try {
+            out.write("0123".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        start();
+        for (int i = 0; i < 100 && key().equals("0123"); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(key().equals("0123"));
+        assertEquals("1 Compile server stopped",
+                request(key(), "-stop").get(0));
+        thread.join(5000);
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testInvalidPort() {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            Main.main(new String[] {"-server=99999"});
+        } finally {
+            System.setOut(out);
+        }
+        assertTrue(bytes.toString().startsWith("Usage:"));
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.stats;
+
+import com.aperigeek.mj.parser.Parser;
+import com.aperigeek.mj.scanner.Scanner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class StatsTest extends TestCase {
+
+    public void testCompilation() throws Exception {
+        String program = "program P int x; {"
+                + " void main() int y; { y = 2; x = y; print(x); }"
+                + "}";
+        Stats stats = new Stats();
+        Scanner scanner = new Scanner(
+                new ByteArrayInputStream(program.getBytes()));
+        scanner.stats = stats;
+        Parser parser = new Parser(scanner);
+        parser.stats = stats;
+        parser.parse();
+        assertEquals(0, parser.errors);
+        parser.code.stats = stats;
+        parser.code.write(new ByteArrayOutputStream());
+
+        // End of file included
+        assertEquals(30, stats.tokens);
+        // x, main and y
+        assertEquals(3, stats.symbols);
+        // Both types, the four designators, and main once parsed
+        assertEquals(7, stats.lookups);
+        assertEquals(parser.code.pc, stats.codeSize);
+        assertTrue(stats.instructions > 0);
+        assertTrue(stats.scanTime > 0);
+        // Scanning is part of parsing
+        assertTrue(stats.time(Stats.PARSE) >= stats.scanTime);
+        assertEquals(0, stats.time(Stats.OPTIMIZE));
+    }
+
+    public void testNesting() {
+        Stats stats = new Stats();
+        stats.enter(Stats.PARSE);
+        stats.enter(Stats.WRITE);
+        stats.exit();
+        stats.exit();
+        // Time spent outside of any phase isn't charged
+        stats.enter(Stats.WRITE);
+        stats.exit();
+        assertTrue(stats.time(Stats.PARSE) >= 0);
+        assertTrue(stats.time(Stats.WRITE) >= 0);
+        assertEquals(0, stats.time(Stats.OPTIMIZE));
+    }
+
+}
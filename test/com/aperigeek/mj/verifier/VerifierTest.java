@@ -0,0 +1,143 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.aperigeek.mj.verifier;
+
+import com.aperigeek.mj.CompilerFixture;
+import com.aperigeek.mj.codegen.Code;
+import com.aperigeek.mj.codegen.ObjectFile;
+import com.aperigeek.mj.diagnostics.Diagnostic;
+import com.aperigeek.mj.diagnostics.DiagnosticBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Vivien Barousse
+ * @author Sebastien Bocahu
+ */
+public class VerifierTest extends TestCase {
+
+    public void testCompiledProgram() throws IOException {
+        String program = "program P int g; {"
+                + " int add(int a, int b) { return a + b; }"
+                + " void main() int x; {"
+                + "  x = add(1, 2);"
+                + "  while (x < 10) { x = add(x, g); }"
+                + "  print(x);"
+                + " }"
+                + "}";
+        Verifier verifier = new Verifier(CompilerFixture.write(
+                CompilerFixture.parse(program).code));
+
+        assertTrue(verifier.verify());
+        assertEquals(2, verifier.methods.size());
+
+        MethodInfo add = verifier.methods.get(0);
+        assertEquals(2, add.parameters);
+        assertEquals(2, add.locals);
+        assertEquals(2, add.maxStack);
+        assertEquals(1, add.results);
+
+        MethodInfo main = verifier.methods.get(1);
+        assertEquals(0, main.parameters);
+        assertEquals(1, main.locals);
+        assertEquals(2, main.maxStack);
+        assertEquals(0, main.results);
+    }
+
+    public void testLocalOutOfFrame() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(1);
+        code.put(Code.OP_LOAD);
+        code.put(1);
+        code.put(Code.OP_POP);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+
+        assertFalse(new Verifier(CompilerFixture.write(code)).verify());
+    }
+
+    public void testStackUnderflow() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_CONST1);
+        code.put(Code.OP_ADD);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+
+        DiagnosticBuffer diagnostics = new DiagnosticBuffer();
+        Verifier verifier = new Verifier(CompilerFixture.write(code));
+        verifier.diagnostics = diagnostics;
+        assertFalse(verifier.verify());
+        assertEquals(1, diagnostics.size());
+        assertEquals(Diagnostic.STACK_UNDERFLOW, diagnostics.get(0).code);
+        assertEquals("Address 4: Expression stack underflow",
+                diagnostics.get(0).toString());
+    }
+
+    public void testJumpIntoInstruction() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_CONST);
+        code.put4(0);
+        code.put(Code.OP_POP);
+        code.putJump(4);
+        code.put(Code.OP_EXIT);
+        code.put(Code.OP_RETURN);
+
+        assertFalse(new Verifier(CompilerFixture.write(code)).verify());
+    }
+
+    public void testFallingOffMethod() throws IOException {
+        Code code = new Code();
+        code.put(Code.OP_ENTER);
+        code.put(0);
+        code.put(0);
+        code.put(Code.OP_EXIT);
+
+        assertFalse(new Verifier(CompilerFixture.write(code)).verify());
+    }
+
+    public void testFarAddresses() throws IOException {
+        // main calls a method placed after 40000 bytes of empty methods,
+        // which jumps within itself
+        int far = 40008;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte('M');
+        data.writeByte('J');
+        data.writeInt(far + 8);
+        data.writeInt(0);
+        data.writeInt(0);
+
+        data.write(new byte[] {Code.OP_ENTER, 0, 0, Code.OP_CALL});
+        data.writeShort(far);
+        data.write(new byte[] {Code.OP_EXIT, Code.OP_RETURN});
+        for (int pc = 8; pc < far; pc += 5) {
+            data.write(new byte[] {Code.OP_ENTER, 0, 0,
+                    Code.OP_EXIT, Code.OP_RETURN});
+        }
+        data.write(new byte[] {Code.OP_ENTER, 0, 0, Code.OP_JMP});
+        data.writeShort(far + 6);
+        data.write(new byte[] {Code.OP_EXIT, Code.OP_RETURN});
+
+        Verifier verifier = new Verifier(ObjectFile.read(
+                new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(verifier.verify());
+        assertEquals(far, verifier.methods.get(
+                verifier.methods.size() - 1).address);
+    }
+
+}